@@ -0,0 +1,17 @@
+package org.willena.lox;
+
+// The callee a call site last called, once it passed the checks every call needs: that it can be
+// called at all, and that it takes as many arguments as the site passes. Most sites keep calling
+// the same function, so all they do is compare the callee with the one already checked. The arity
+// of a function or class never changes, so a callee that passed once always does.
+final class CallCache {
+    private LoxCallable callee;
+
+    LoxCallable check(Object callee, int arity, Token paren) {
+        if (callee == this.callee && callee != null) return this.callee;
+
+        var function = Interpreter.callable(callee, arity, paren);
+        this.callee = function;
+        return function;
+    }
+}
@@ -0,0 +1,64 @@
+package org.willena.lox;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+// How deeply Lox calls may nest, and the thread that gives them the Java stack to do so. It's
+// kept apart from Lox, as programs compiled ahead of time run on it without the rest of the
+// toolchain.
+final class CallStack {
+    private CallStack() {}
+
+    // How deeply Lox calls can nest before the program fails with a stack overflow. The VM keeps
+    // its call frames in an array and only needs this as a limit, but the tree-walking interpreter
+    // and the code compiled from it nest calls on the Java stack.
+    static int maxDepth = 64 * 1024;
+
+    // The Java stack one Lox call takes in the tree-walking interpreter, before HotSpot has
+    // compiled it, when its frames are largest. That's only an estimate, as a call takes more the
+    // more blocks its body nests, so calls that run out of stack first still report a stack
+    // overflow as a runtime error, just before getting to maxDepth.
+    private static final long STACK_PER_CALL = 2 * 1024;
+
+    // The stack everything but the calls themselves takes, including running the resolver and
+    // the optimizers over a deeply nested program, so a small maxDepth still leaves plenty
+    private static final long BASE_STACK = 8 * 1024 * 1024;
+
+    interface Script {
+        void run() throws IOException;
+    }
+
+    // Runs the script on a thread with enough stack for maxDepth nested calls, so that deep
+    // recursion reports a stack overflow as a Lox runtime error rather than crashing the JVM with
+    // a StackOverflowError. Only this one thread gets the large stack, and the operating system
+    // only commits the part of it that is actually used.
+    //
+    // Anything the script throws is thrown again on the calling thread, so the process still
+    // fails with it instead of exiting normally once the thread is done.
+    static void run(Script script) {
+        var failure = new Throwable[1];
+        var thread = new Thread(null, () -> {
+            try {
+                script.run();
+            } catch (Throwable error) {
+                failure[0] = error;
+            }
+        }, "jlox", BASE_STACK + STACK_PER_CALL * maxDepth);
+
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+        }
+
+        switch (failure[0]) {
+            case null -> {}
+            case IOException error -> throw new UncheckedIOException(error);
+            case RuntimeException error -> throw error;
+            case Error error -> throw error;
+            // Script.run throws no other checked exceptions
+            default -> throw new IllegalStateException(failure[0]);
+        }
+    }
+}
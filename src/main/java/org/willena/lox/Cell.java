@@ -0,0 +1,13 @@
+package org.willena.lox;
+
+// A local variable captured by a function declared inside its scope. The frame that declares the
+// variable and every function that captured it share the cell, so they all see its assignments,
+// and the cell outlives the frame for as long as one of those functions does. Variables that no
+// function captures are never put in a cell.
+final class Cell {
+    Object value;
+
+    Cell(Object value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,55 @@
+package org.willena.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A compiled sequence of bytecode together with its constant pool. The source line of every byte is
+// kept alongside it so runtime errors can be reported on the same line as in the tree-walker.
+class Chunk {
+    byte[] code = new byte[64];
+    int[] lines = new int[64];
+    int count = 0;
+
+    private final List<Object> constantList = new ArrayList<>();
+    private final Map<Object, Integer> constantIndices = new HashMap<>();
+
+    // Filled in once the chunk is complete, so the VM can index an array directly
+    Object[] constants;
+
+    void write(byte value, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = value;
+        lines[count] = line;
+        count++;
+    }
+
+    void writeShort(int value, int line) {
+        write((byte)((value >> 8) & 0xff), line);
+        write((byte)(value & 0xff), line);
+    }
+
+    // Adds a value to the constant pool and returns its index. Strings and numbers are shared, so a
+    // name used all over a function only takes up one entry.
+    int addConstant(Object value) {
+        if (value instanceof String || value instanceof Double || value instanceof Long) {
+            var existing = constantIndices.get(value);
+            if (existing != null) return existing;
+            constantIndices.put(value, constantList.size());
+        }
+
+        constantList.add(value);
+        return constantList.size() - 1;
+    }
+
+    void finish() {
+        code = Arrays.copyOf(code, count);
+        lines = Arrays.copyOf(lines, count);
+        constants = constantList.toArray();
+    }
+}
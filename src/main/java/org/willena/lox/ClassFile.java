@@ -0,0 +1,500 @@
+package org.willena.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Just enough of a JVM class file writer for the code JvmCompiler generates. Classes are written in
+// the Java 5 format (version 49), which the JVM verifies by type inference. That spares us from
+// computing stack map frames, which newer versions require for every branch target.
+class ClassFile {
+    private static final int VERSION = 49;
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndices = new HashMap<>();
+    private int poolCount = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final List<Integer> interfaces = new ArrayList<>();
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<byte[]> methods = new ArrayList<>();
+
+    ClassFile(String name, String superName, String... interfaceNames) {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+        for (var interfaceName : interfaceNames) {
+            interfaces.add(classRef(interfaceName));
+        }
+    }
+
+    void addField(int access, String name, String descriptor) {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        write(() -> {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(0);
+        });
+        fields.add(bytes.toByteArray());
+    }
+
+    Code addMethod(int access, String name, String descriptor) {
+        return new Code(access, name, descriptor);
+    }
+
+    byte[] toByteArray() {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        write(() -> {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            out.write(poolBytes.toByteArray());
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.size());
+            for (var index : interfaces) out.writeShort(index);
+            out.writeShort(fields.size());
+            for (var field : fields) out.write(field);
+            out.writeShort(methods.size());
+            for (var method : methods) out.write(method);
+            out.writeShort(0);
+        });
+        return bytes.toByteArray();
+    }
+
+    // Constant pool entries. Each one is only added once, later requests reuse its index.
+
+    int utf8(String value) {
+        return constant("Utf8:" + value, 1, () -> {
+            pool.writeByte(1);
+            pool.writeUTF(value);
+        });
+    }
+
+    int classRef(String internalName) {
+        var name = utf8(internalName);
+        return constant("Class:" + internalName, 1, () -> {
+            pool.writeByte(7);
+            pool.writeShort(name);
+        });
+    }
+
+    int string(String value) {
+        var utf8 = utf8(value);
+        return constant("String:" + value, 1, () -> {
+            pool.writeByte(8);
+            pool.writeShort(utf8);
+        });
+    }
+
+    int integer(int value) {
+        return constant("Integer:" + value, 1, () -> {
+            pool.writeByte(3);
+            pool.writeInt(value);
+        });
+    }
+
+    int doubleConstant(double value) {
+        // Keyed on the bits, so 0 and -0 (or different NaNs) don't end up sharing an entry
+        return constant("Double:" + Double.doubleToRawLongBits(value), 2, () -> {
+            pool.writeByte(6);
+            pool.writeDouble(value);
+        });
+    }
+
+    int longConstant(long value) {
+        return constant("Long:" + value, 2, () -> {
+            pool.writeByte(5);
+            pool.writeLong(value);
+        });
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(9, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(10, owner, name, descriptor);
+    }
+
+    int interfaceMethodRef(String owner, String name, String descriptor) {
+        return memberRef(11, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        var ownerIndex = classRef(owner);
+        var nameIndex = utf8(name);
+        var descriptorIndex = utf8(descriptor);
+        var nameAndType = constant("NameAndType:" + name + ":" + descriptor, 1, () -> {
+            pool.writeByte(12);
+            pool.writeShort(nameIndex);
+            pool.writeShort(descriptorIndex);
+        });
+        return constant(tag + ":" + owner + "." + name + ":" + descriptor, 1, () -> {
+            pool.writeByte(tag);
+            pool.writeShort(ownerIndex);
+            pool.writeShort(nameAndType);
+        });
+    }
+
+    private interface Writer {
+        void write() throws IOException;
+    }
+
+    private int constant(String key, int size, Writer writer) {
+        var existing = poolIndices.get(key);
+        if (existing != null) return existing;
+
+        write(writer);
+        var index = poolCount;
+        poolCount += size;
+        if (poolCount > 0xffff) throw new TooLarge("Too many constants.");
+        poolIndices.put(key, index);
+        return index;
+    }
+
+    private static void write(Writer writer) {
+        try {
+            writer.write();
+        } catch (IOException error) {
+            // Only ever writing to memory
+            throw new IllegalStateException(error);
+        }
+    }
+
+    // Thrown when the code doesn't fit in the limits of the class file format. The function simply
+    // keeps running in the interpreter.
+    static class TooLarge extends RuntimeException {
+        TooLarge(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    // A position in the code that jumps can target before it's known
+    static class Label {
+        private int position = -1;
+        private int stackDepth = -1;
+        private final List<Integer> jumps = new ArrayList<>();
+    }
+
+    // The body of a method. Keeps track of the operand stack depth as instructions are added, so
+    // max_stack comes out right without a separate analysis pass.
+    class Code {
+        static final int ACONST_NULL = 0x01;
+        static final int ICONST_0 = 0x03;
+        static final int AALOAD = 0x32;
+        static final int AASTORE = 0x53;
+        static final int POP = 0x57;
+        static final int DUP = 0x59;
+        static final int DUP_X1 = 0x5a;
+        static final int DUP_X2 = 0x5b;
+        static final int SWAP = 0x5f;
+        static final int DADD = 0x63;
+        static final int DSUB = 0x67;
+        static final int DMUL = 0x6b;
+        static final int DDIV = 0x6f;
+        static final int DNEG = 0x77;
+        static final int IFEQ = 0x99;
+        static final int IFNE = 0x9a;
+        static final int IF_ACMPEQ = 0xa5;
+        static final int IF_ACMPNE = 0xa6;
+        static final int GOTO = 0xa7;
+        static final int ARETURN = 0xb0;
+        static final int RETURN = 0xb1;
+        static final int ATHROW = 0xbf;
+        static final int IFNULL = 0xc6;
+        static final int IFNONNULL = 0xc7;
+
+        private final int access;
+        private final String name;
+        private final String descriptor;
+
+        private byte[] code = new byte[256];
+        private int length = 0;
+        private int stackDepth = 0;
+        private int maxStack = 0;
+        private int maxLocals;
+
+        // Set after an unconditional jump, return or throw, until the next label is placed
+        private boolean unreachable = false;
+
+        private Code(int access, String name, String descriptor) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            maxLocals = argumentSlots(descriptor) + ((access & ACC_STATIC) == 0 ? 1 : 0);
+        }
+
+        void op(int opcode) {
+            emit(opcode);
+            switch (opcode) {
+                case ACONST_NULL, ICONST_0, DUP, DUP_X1, DUP_X2 -> adjust(1);
+                case AALOAD, POP, IFEQ, IFNE, IFNULL, IFNONNULL, ATHROW, ARETURN -> adjust(-1);
+                case AASTORE -> adjust(-3);
+                case IF_ACMPEQ, IF_ACMPNE, DADD, DSUB, DMUL, DDIV -> adjust(-2);
+                case SWAP, DNEG, GOTO, RETURN -> {}
+                default -> throw new IllegalArgumentException("Unknown opcode " + opcode);
+            }
+            if (opcode == GOTO || opcode == RETURN || opcode == ARETURN || opcode == ATHROW) {
+                unreachable = true;
+            }
+        }
+
+        void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                emit(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                emit(0x10); // bipush
+                emit(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                emit(0x11); // sipush
+                emitShort(value);
+            } else {
+                ldc(integer(value));
+                return;
+            }
+            adjust(1);
+        }
+
+        void pushString(String value) {
+            ldc(string(value));
+        }
+
+        void pushDouble(double value) {
+            emit(0x14); // ldc2_w
+            emitShort(doubleConstant(value));
+            adjust(2);
+        }
+
+        void pushLong(long value) {
+            emit(0x14); // ldc2_w
+            emitShort(longConstant(value));
+            adjust(2);
+        }
+
+        private void ldc(int index) {
+            if (index <= 0xff) {
+                emit(0x12);
+                emit(index);
+            } else {
+                emit(0x13);
+                emitShort(index);
+            }
+            adjust(1);
+        }
+
+        void aload(int local) {
+            localOp(0x19, 0x2a, local);
+            adjust(1);
+        }
+
+        void astore(int local) {
+            localOp(0x3a, 0x4b, local);
+            adjust(-1);
+        }
+
+        private void localOp(int opcode, int shortForm, int local) {
+            maxLocals = Math.max(maxLocals, local + 1);
+            if (local <= 3) {
+                emit(shortForm + local);
+            } else if (local <= 0xff) {
+                emit(opcode);
+                emit(local);
+            } else {
+                emit(0xc4); // wide
+                emit(opcode);
+                emitShort(local);
+            }
+        }
+
+        void getStatic(String owner, String name, String descriptor) {
+            emit(0xb2);
+            emitShort(fieldRef(owner, name, descriptor));
+            adjust(1);
+        }
+
+        void getField(String owner, String name, String descriptor) {
+            emit(0xb4);
+            emitShort(fieldRef(owner, name, descriptor));
+        }
+
+        void putField(String owner, String name, String descriptor) {
+            emit(0xb5);
+            emitShort(fieldRef(owner, name, descriptor));
+            adjust(-2);
+        }
+
+        void invokeStatic(String owner, String name, String descriptor) {
+            emit(0xb8);
+            emitShort(methodRef(owner, name, descriptor));
+            adjust(returnSlots(descriptor) - argumentSlots(descriptor));
+        }
+
+        void invokeVirtual(String owner, String name, String descriptor) {
+            emit(0xb6);
+            emitShort(methodRef(owner, name, descriptor));
+            adjust(returnSlots(descriptor) - argumentSlots(descriptor) - 1);
+        }
+
+        void invokeSpecial(String owner, String name, String descriptor) {
+            emit(0xb7);
+            emitShort(methodRef(owner, name, descriptor));
+            adjust(returnSlots(descriptor) - argumentSlots(descriptor) - 1);
+        }
+
+        void invokeInterface(String owner, String name, String descriptor) {
+            var arguments = argumentSlots(descriptor);
+            emit(0xb9);
+            emitShort(interfaceMethodRef(owner, name, descriptor));
+            emit(arguments + 1);
+            emit(0);
+            adjust(returnSlots(descriptor) - arguments - 1);
+        }
+
+        void newObject(String internalName) {
+            emit(0xbb);
+            emitShort(classRef(internalName));
+            adjust(1);
+        }
+
+        void instanceOf(String internalName) {
+            emit(0xc1);
+            emitShort(classRef(internalName));
+        }
+
+        void checkCast(String internalName) {
+            emit(0xc0);
+            emitShort(classRef(internalName));
+        }
+
+        void newArray(String elementType) {
+            emit(0xbd); // anewarray
+            emitShort(classRef(elementType));
+        }
+
+        void jump(int opcode, Label target) {
+            var at = length;
+            op(opcode);
+            if (target.stackDepth == -1) target.stackDepth = stackDepth;
+            if (target.position != -1) {
+                emitShort(target.position - at);
+            } else {
+                target.jumps.add(at);
+                emitShort(0);
+            }
+        }
+
+        void place(Label label) {
+            label.position = length;
+            if (unreachable) {
+                // A label nothing jumps to leaves the code after it unreachable too
+                if (label.stackDepth != -1) {
+                    stackDepth = label.stackDepth;
+                    unreachable = false;
+                }
+            } else if (label.stackDepth == -1) {
+                label.stackDepth = stackDepth;
+            }
+
+            for (var at : label.jumps) {
+                var offset = label.position - at;
+                code[at + 1] = (byte)(offset >> 8);
+                code[at + 2] = (byte)offset;
+            }
+        }
+
+        boolean isUnreachable() {
+            return unreachable;
+        }
+
+        int stackDepth() {
+            return stackDepth;
+        }
+
+        // Finishes the method and adds it to the class.
+        void end() {
+            // Branch offsets are signed 16-bit values
+            if (length > Short.MAX_VALUE) throw new TooLarge("Method too large.");
+
+            var bytes = new ByteArrayOutputStream();
+            var out = new DataOutputStream(bytes);
+            var nameIndex = utf8(name);
+            var descriptorIndex = utf8(descriptor);
+            var codeIndex = utf8("Code");
+            write(() -> {
+                out.writeShort(access);
+                out.writeShort(nameIndex);
+                out.writeShort(descriptorIndex);
+                out.writeShort(1);
+
+                out.writeShort(codeIndex);
+                out.writeInt(12 + length);
+                out.writeShort(maxStack);
+                out.writeShort(maxLocals);
+                out.writeInt(length);
+                out.write(code, 0, length);
+                out.writeShort(0); // exception table
+                out.writeShort(0); // attributes
+            });
+            methods.add(bytes.toByteArray());
+        }
+
+        private void adjust(int effect) {
+            stackDepth += effect;
+            maxStack = Math.max(maxStack, stackDepth);
+        }
+
+        private void emit(int value) {
+            if (length == code.length) code = Arrays.copyOf(code, length * 2);
+            code[length++] = (byte)value;
+        }
+
+        private void emitShort(int value) {
+            emit(value >> 8);
+            emit(value);
+        }
+    }
+
+    // Number of local variable slots taken by a method descriptor's arguments
+    private static int argumentSlots(String descriptor) {
+        var slots = 0;
+        var i = 1;
+        while (descriptor.charAt(i) != ')') {
+            var c = descriptor.charAt(i);
+            if (c == 'J' || c == 'D') {
+                slots += 2;
+                i++;
+            } else {
+                slots++;
+                while (descriptor.charAt(i) == '[') i++;
+                if (descriptor.charAt(i) == 'L') i = descriptor.indexOf(';', i);
+                i++;
+            }
+        }
+        return slots;
+    }
+
+    private static int returnSlots(String descriptor) {
+        var returnType = descriptor.charAt(descriptor.indexOf(')') + 1);
+        if (returnType == 'V') return 0;
+        if (returnType == 'J' || returnType == 'D') return 2;
+        return 1;
+    }
+}
@@ -0,0 +1,694 @@
+package org.willena.lox;
+
+import java.util.List;
+
+// Converts a resolved program into a tree of Java lambdas, once, before running it. Everything that
+// can be decided up front is decided here: which operator a node applies, where a variable lives
+// and what a literal's value is. Running the result never switches on token types or goes through
+// the visitors, each closure simply calls its children.
+//
+// The runtime is the same as the interpreter's: frames, cells, LoxFunction, LoxClass and LoxInstance.
+// Functions are converted along with the rest of the program and handed to LoxFunction as its
+// compiled code.
+class ClosureCompiler implements Expr.Visitor<ClosureCompiler.Evaluator>, Stmt.Visitor<ClosureCompiler.Executor> {
+
+    interface Evaluator {
+        Object evaluate(Environment environment);
+    }
+
+    // Gives what the interpreter's statements give: COMPLETED, or the value of a return statement
+    // that ran
+    interface Executor {
+        Object execute(Environment environment);
+    }
+
+    private static final Object COMPLETED = Interpreter.COMPLETED;
+
+    // An expression used as a condition, for which only its truthiness matters
+    interface Condition {
+        boolean test(Environment environment);
+    }
+
+    // An expression that can only give a number, which gives it unboxed
+    interface NumberEvaluator {
+        double evaluate(Environment environment);
+    }
+
+    // Finds what a method call calls on its receiver
+    private interface MethodLookup {
+        Object find(Environment environment, Object receiver);
+    }
+
+    private record Function(int slots, boolean isMethod, int arity, int[] capturedParameters, Executor[] body)
+            implements CompiledFunction {
+        @Override
+        public Object call(Interpreter interpreter, Cell[] upvalues, LoxInstance receiver, List<Object> arguments) {
+            var environment = frame(interpreter, upvalues, receiver);
+            var first = first();
+            for (var i = 0; i < arity; i++) {
+                environment.slots[first + i] = arguments.get(i);
+            }
+            return run(environment);
+        }
+
+        @Override
+        public Object call0(Interpreter interpreter, Cell[] upvalues, LoxInstance receiver) {
+            return run(frame(interpreter, upvalues, receiver));
+        }
+
+        @Override
+        public Object call1(Interpreter interpreter, Cell[] upvalues, LoxInstance receiver, Object a) {
+            var environment = frame(interpreter, upvalues, receiver);
+            environment.slots[first()] = a;
+            return run(environment);
+        }
+
+        @Override
+        public Object call2(Interpreter interpreter, Cell[] upvalues, LoxInstance receiver, Object a, Object b) {
+            var environment = frame(interpreter, upvalues, receiver);
+            var first = first();
+            environment.slots[first] = a;
+            environment.slots[first + 1] = b;
+            return run(environment);
+        }
+
+        @Override
+        public Object call3(
+                Interpreter interpreter, Cell[] upvalues, LoxInstance receiver, Object a, Object b, Object c) {
+            var environment = frame(interpreter, upvalues, receiver);
+            var first = first();
+            environment.slots[first] = a;
+            environment.slots[first + 1] = b;
+            environment.slots[first + 2] = c;
+            return run(environment);
+        }
+
+        private Environment frame(Interpreter interpreter, Cell[] upvalues, LoxInstance receiver) {
+            var environment = interpreter.frame(slots, upvalues);
+            if (isMethod) environment.slots[0] = receiver;
+            return environment;
+        }
+
+        private int first() {
+            return isMethod ? 1 : 0;
+        }
+
+        private Object run(Environment environment) {
+            for (var slot : capturedParameters) {
+                environment.slots[slot] = new Cell(environment.slots[slot]);
+            }
+
+            try {
+                for (var statement : body) {
+                    var result = statement.execute(environment);
+                    if (result != COMPLETED) return result;
+                }
+                return null;
+            } finally {
+                environment.clear(slots);
+            }
+        }
+    }
+
+    private final Interpreter interpreter;
+
+    ClosureCompiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    Executor compile(List<Stmt> statements) {
+        var executors = compileAll(statements);
+        return environment -> {
+            for (var executor : executors) {
+                executor.execute(environment);
+            }
+            return COMPLETED;
+        };
+    }
+
+    // Statements
+
+    // Blocks run in the frame of the function they're in
+    @Override
+    public Executor visitBlockStmt(Stmt.Block stmt) {
+        var statements = compileAll(stmt.statements);
+        return environment -> {
+            for (var statement : statements) {
+                var result = statement.execute(environment);
+                if (result != COMPLETED) return result;
+            }
+            return COMPLETED;
+        };
+    }
+
+    @Override
+    public Executor visitClassStmt(Stmt.Class stmt) {
+        var name = stmt.name.lexeme;
+        var methods = stmt.methods;
+        for (var method : methods) {
+            compileFunction(method);
+        }
+
+        if (stmt.superclass == null) {
+            return define(stmt.name, stmt.slot, stmt.captured,
+                environment -> Interpreter.createClass(name, null, methods(methods, environment)));
+        }
+
+        var superclass = compile(stmt.superclass);
+        var superclassName = stmt.superclass.name;
+        var superclassSlot = stmt.superclassSlot;
+        return define(stmt.name, stmt.slot, stmt.captured, environment -> {
+            var klass = Interpreter.checkSuperclass(superclass.evaluate(environment), superclassName);
+            if (superclassSlot != -1) environment.slots[superclassSlot] = new Cell(klass);
+            return Interpreter.createClass(name, klass, methods(methods, environment));
+        });
+    }
+
+    private static List<LoxFunction> methods(List<Stmt.Function> declarations, Environment environment) {
+        return declarations.stream()
+            .map(method -> Interpreter.method(method, environment.capture(method.captures)))
+            .toList();
+    }
+
+    @Override
+    public Executor visitExpressionStmt(Stmt.Expression stmt) {
+        var expression = compile(stmt.expression);
+        return environment -> {
+            expression.evaluate(environment);
+            return COMPLETED;
+        };
+    }
+
+    @Override
+    public Executor visitFunctionStmt(Stmt.Function stmt) {
+        compileFunction(stmt);
+        var captures = stmt.captures;
+        return define(stmt.name, stmt.slot, stmt.captured,
+            environment -> new LoxFunction(stmt, environment.capture(captures), false));
+    }
+
+    private void compileFunction(Stmt.Function function) {
+        var body = compileAll(function.body);
+        function.compiled = new Function(
+            function.slots, function.isMethod, function.params.size(), function.capturedParameters, body);
+    }
+
+    @Override
+    public Executor visitIfStmt(Stmt.If stmt) {
+        var condition = condition(stmt.condition);
+        var thenBranch = compile(stmt.thenBranch);
+        if (stmt.elseBranch == null) {
+            return environment -> condition.test(environment) ? thenBranch.execute(environment) : COMPLETED;
+        }
+
+        var elseBranch = compile(stmt.elseBranch);
+        return environment -> {
+            if (condition.test(environment)) {
+                return thenBranch.execute(environment);
+            } else {
+                return elseBranch.execute(environment);
+            }
+        };
+    }
+
+    @Override
+    public Executor visitPrintStmt(Stmt.Print stmt) {
+        var expression = compile(stmt.expression);
+        return environment -> {
+            JvmRuntime.print(expression.evaluate(environment));
+            return COMPLETED;
+        };
+    }
+
+    @Override
+    public Executor visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return environment -> null;
+
+        var value = compile(stmt.value);
+        return value::evaluate;
+    }
+
+    @Override
+    public Executor visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) return define(stmt.name, stmt.slot, stmt.captured, environment -> null);
+        return define(stmt.name, stmt.slot, stmt.captured, compile(stmt.initializer));
+    }
+
+    @Override
+    public Executor visitWhileStmt(Stmt.While stmt) {
+        var condition = condition(stmt.condition);
+        var body = compile(stmt.body);
+        return environment -> {
+            while (condition.test(environment)) {
+                var result = body.execute(environment);
+                if (result != COMPLETED) return result;
+            }
+            return COMPLETED;
+        };
+    }
+
+    // Defines the variable a declaration declares: a global, a local, or a captured local, which
+    // gets a new cell before its value is worked out, the way the interpreter does it
+    private Executor define(Token name, int slot, boolean captured, Evaluator value) {
+        if (slot == -1) {
+            var global = interpreter.global(name.lexeme);
+            return environment -> {
+                global.define(value.evaluate(environment));
+                return COMPLETED;
+            };
+        }
+
+        if (captured) {
+            return environment -> {
+                var cell = new Cell(null);
+                environment.slots[slot] = cell;
+                cell.value = value.evaluate(environment);
+                return COMPLETED;
+            };
+        }
+
+        return environment -> {
+            environment.slots[slot] = value.evaluate(environment);
+            return COMPLETED;
+        };
+    }
+
+    // Expressions
+
+    @Override
+    public Evaluator visitAssignExpr(Expr.Assign expr) {
+        var value = compile(expr.value);
+        var slot = expr.slot;
+        var upvalue = expr.upvalue;
+
+        if (slot != -1) {
+            if (expr.boxed) return environment -> ((Cell)environment.slots[slot]).value = value.evaluate(environment);
+            return environment -> environment.slots[slot] = value.evaluate(environment);
+        }
+        if (upvalue != -1) return environment -> environment.upvalues[upvalue].value = value.evaluate(environment);
+
+        var global = expr.global;
+        var name = expr.name;
+        return environment -> {
+            var result = value.evaluate(environment);
+            global.assign(name, result);
+            return result;
+        };
+    }
+
+    @Override
+    public Evaluator visitBinaryExpr(Expr.Binary expr) {
+        // Only arithmetic on arithmetic has boxes to save
+        if (Numbers.isNumber(expr.left) && Numbers.isNumber(expr.right) && Numbers.isNumber(expr)) {
+            var left = compileNumber(expr.left);
+            var right = compileNumber(expr.right);
+            return switch (expr.operator.type) {
+                case PLUS -> environment -> left.evaluate(environment) + right.evaluate(environment);
+                case MINUS -> environment -> left.evaluate(environment) - right.evaluate(environment);
+                case STAR -> environment -> left.evaluate(environment) * right.evaluate(environment);
+                default -> environment -> left.evaluate(environment) / right.evaluate(environment);
+            };
+        }
+
+        var left = compile(expr.left);
+        var right = compile(expr.right);
+        var operator = expr.operator;
+
+        return switch (operator.type) {
+            case PLUS -> environment ->
+                JvmRuntime.add(left.evaluate(environment), right.evaluate(environment), operator);
+            case MINUS -> environment ->
+                JvmRuntime.subtract(left.evaluate(environment), right.evaluate(environment), operator);
+            case STAR -> environment ->
+                JvmRuntime.multiply(left.evaluate(environment), right.evaluate(environment), operator);
+            case SLASH -> environment ->
+                JvmRuntime.divide(left.evaluate(environment), right.evaluate(environment), operator);
+            case EQUAL_EQUAL -> environment ->
+                Interpreter.isEqual(left.evaluate(environment), right.evaluate(environment));
+            case BANG_EQUAL -> environment ->
+                !Interpreter.isEqual(left.evaluate(environment), right.evaluate(environment));
+            default -> {
+                var comparison = comparison(expr);
+                yield comparison::test;
+            }
+        };
+    }
+
+    @Override
+    public Evaluator visitCallExpr(Expr.Call expr) {
+        var callee = compile(expr.callee);
+        var arguments = expr.arguments.stream().map(this::compile).toArray(Evaluator[]::new);
+        var cache = expr.cache;
+        var paren = expr.paren;
+
+        // Calls of up to three arguments pass them directly
+        return switch (arguments.length) {
+            case 0 -> environment -> JvmRuntime.call0(interpreter, cache, callee.evaluate(environment), paren);
+            case 1 -> {
+                var a = arguments[0];
+                yield environment -> {
+                    var function = callee.evaluate(environment);
+                    return JvmRuntime.call1(interpreter, cache, function, a.evaluate(environment), paren);
+                };
+            }
+            case 2 -> {
+                var a = arguments[0];
+                var b = arguments[1];
+                yield environment -> {
+                    var function = callee.evaluate(environment);
+                    var first = a.evaluate(environment);
+                    return JvmRuntime.call2(interpreter, cache, function, first, b.evaluate(environment), paren);
+                };
+            }
+            case 3 -> {
+                var a = arguments[0];
+                var b = arguments[1];
+                var c = arguments[2];
+                yield environment -> {
+                    var function = callee.evaluate(environment);
+                    var first = a.evaluate(environment);
+                    var second = b.evaluate(environment);
+                    return JvmRuntime.call3(
+                        interpreter, cache, function, first, second, c.evaluate(environment), paren);
+                };
+            }
+            default -> environment -> {
+                var function = callee.evaluate(environment);
+                return JvmRuntime.call(interpreter, function, evaluateAll(arguments, environment), paren);
+            };
+        };
+    }
+
+    private static Object[] evaluateAll(Evaluator[] arguments, Environment environment) {
+        var values = new Object[arguments.length];
+        for (var i = 0; i < arguments.length; i++) {
+            values[i] = arguments[i].evaluate(environment);
+        }
+        return values;
+    }
+
+    @Override
+    public Evaluator visitGetExpr(Expr.Get expr) {
+        var object = compile(expr.object);
+        var name = expr.name;
+        var cache = expr.cache;
+        return environment -> cache.get(object.evaluate(environment), name);
+    }
+
+    @Override
+    public Evaluator visitInvokeExpr(Expr.Invoke expr) {
+        Evaluator receiver;
+        MethodLookup lookup;
+        if (expr.callee instanceof Expr.Super superExpr) {
+            var upvalue = superExpr.upvalue;
+            var cache = superExpr.cache;
+            var method = superExpr.method;
+            receiver = compile(superExpr.receiver);
+            lookup = (environment, object) -> cache.get((LoxClass)environment.upvalues[upvalue].value, method);
+        } else {
+            var get = (Expr.Get)expr.callee;
+            var cache = get.cache;
+            var name = get.name;
+            receiver = compile(get.object);
+            lookup = (environment, object) -> cache.getMethod(object, name);
+        }
+
+        var arguments = expr.arguments.stream().map(this::compile).toArray(Evaluator[]::new);
+        var cache = expr.cache;
+        var paren = expr.paren;
+
+        return switch (arguments.length) {
+            case 0 -> environment -> {
+                var object = receiver.evaluate(environment);
+                return JvmRuntime.invoke0(interpreter, cache, object, lookup.find(environment, object), paren);
+            };
+            case 1 -> {
+                var a = arguments[0];
+                yield environment -> {
+                    var object = receiver.evaluate(environment);
+                    var callee = lookup.find(environment, object);
+                    return JvmRuntime.invoke1(interpreter, cache, object, callee, a.evaluate(environment), paren);
+                };
+            }
+            case 2 -> {
+                var a = arguments[0];
+                var b = arguments[1];
+                yield environment -> {
+                    var object = receiver.evaluate(environment);
+                    var callee = lookup.find(environment, object);
+                    var first = a.evaluate(environment);
+                    return JvmRuntime.invoke2(
+                        interpreter, cache, object, callee, first, b.evaluate(environment), paren);
+                };
+            }
+            case 3 -> {
+                var a = arguments[0];
+                var b = arguments[1];
+                var c = arguments[2];
+                yield environment -> {
+                    var object = receiver.evaluate(environment);
+                    var callee = lookup.find(environment, object);
+                    var first = a.evaluate(environment);
+                    var second = b.evaluate(environment);
+                    return JvmRuntime.invoke3(
+                        interpreter, cache, object, callee, first, second, c.evaluate(environment), paren);
+                };
+            }
+            default -> environment -> {
+                var object = receiver.evaluate(environment);
+                var callee = lookup.find(environment, object);
+                return JvmRuntime.invoke(interpreter, object, callee, evaluateAll(arguments, environment), paren);
+            };
+        };
+    }
+
+    @Override
+    public Evaluator visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Evaluator visitLiteralExpr(Expr.Literal expr) {
+        // Unboxed arithmetic gives doubles, so integers are loaded as doubles too, as JvmCompiler
+        // does, and the runtime helpers keep seeing the one type they take first
+        var value = expr.value instanceof Long integer ? (Object)(double)integer : expr.value;
+        return environment -> value;
+    }
+
+    @Override
+    public Evaluator visitLogicalExpr(Expr.Logical expr) {
+        var left = compile(expr.left);
+        var right = compile(expr.right);
+
+        if (expr.operator.type == TokenType.OR) {
+            return environment -> {
+                var value = left.evaluate(environment);
+                return Interpreter.isTruthy(value) ? value : right.evaluate(environment);
+            };
+        }
+
+        return environment -> {
+            var value = left.evaluate(environment);
+            return Interpreter.isTruthy(value) ? right.evaluate(environment) : value;
+        };
+    }
+
+    @Override
+    public Evaluator visitSetExpr(Expr.Set expr) {
+        var object = compile(expr.object);
+        var value = compile(expr.value);
+        var name = expr.name;
+        var cache = expr.cache;
+
+        return environment -> {
+            var instance = JvmRuntime.instanceForSet(object.evaluate(environment), name);
+            return cache.set(instance, name, value.evaluate(environment));
+        };
+    }
+
+    @Override
+    public Evaluator visitSuperExpr(Expr.Super expr) {
+        var upvalue = expr.upvalue;
+        var cache = expr.cache;
+        var method = expr.method;
+        var receiver = compile(expr.receiver);
+
+        return environment -> {
+            var superclass = (LoxClass)environment.upvalues[upvalue].value;
+            var object = (LoxInstance)receiver.evaluate(environment);
+            return cache.get(superclass, method).bind(object);
+        };
+    }
+
+    @Override
+    public Evaluator visitThisExpr(Expr.This expr) {
+        return variable(expr.slot, expr.upvalue, expr.boxed);
+    }
+
+    @Override
+    public Evaluator visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type == TokenType.BANG) {
+            var condition = condition(expr.right);
+            return environment -> !condition.test(environment);
+        }
+
+        if (Numbers.isNumber(expr.right)) {
+            var number = compileNumber(expr.right);
+            return environment -> -number.evaluate(environment);
+        }
+
+        var right = compile(expr.right);
+        var operator = expr.operator;
+        return environment -> JvmRuntime.negate(right.evaluate(environment), operator);
+    }
+
+    @Override
+    public Evaluator visitVariableExpr(Expr.Variable expr) {
+        if (expr.slot == -1 && expr.upvalue == -1) {
+            var global = expr.global;
+            var name = expr.name;
+            return environment -> global.get(name);
+        }
+
+        return variable(expr.slot, expr.upvalue, expr.boxed);
+    }
+
+    private static Evaluator variable(int slot, int upvalue, boolean boxed) {
+        if (slot == -1) return environment -> environment.upvalues[upvalue].value;
+        if (boxed) return environment -> ((Cell)environment.slots[slot]).value;
+        return environment -> environment.slots[slot];
+    }
+
+    // Conditions skip boxing the result of comparisons and logical operators into a Boolean, only
+    // to check its truthiness right after
+
+    private Condition condition(Expr expr) {
+        switch (expr) {
+            case Expr.Grouping grouping -> {
+                return condition(grouping.expression);
+            }
+            case Expr.Unary unary when unary.operator.type == TokenType.BANG -> {
+                var right = condition(unary.right);
+                return environment -> !right.test(environment);
+            }
+            case Expr.Logical logical -> {
+                var left = condition(logical.left);
+                var right = condition(logical.right);
+                if (logical.operator.type == TokenType.OR) {
+                    return environment -> left.test(environment) || right.test(environment);
+                }
+                return environment -> left.test(environment) && right.test(environment);
+            }
+            case Expr.Binary binary when isComparison(binary.operator.type) -> {
+                return comparison(binary);
+            }
+            case Expr.Binary binary when binary.operator.type == TokenType.EQUAL_EQUAL -> {
+                var left = compile(binary.left);
+                var right = compile(binary.right);
+                return environment -> Interpreter.isEqual(left.evaluate(environment), right.evaluate(environment));
+            }
+            default -> {
+                var value = compile(expr);
+                return environment -> Interpreter.isTruthy(value.evaluate(environment));
+            }
+        }
+    }
+
+    private static boolean isComparison(TokenType type) {
+        return switch (type) {
+            case GREATER, GREATER_EQUAL, LESS, LESS_EQUAL -> true;
+            default -> false;
+        };
+    }
+
+    private Condition comparison(Expr.Binary expr) {
+        if (Numbers.isNumber(expr.left) && Numbers.isNumber(expr.right)) {
+            var left = compileNumber(expr.left);
+            var right = compileNumber(expr.right);
+            return switch (expr.operator.type) {
+                case GREATER -> environment -> left.evaluate(environment) > right.evaluate(environment);
+                case GREATER_EQUAL -> environment -> left.evaluate(environment) >= right.evaluate(environment);
+                case LESS -> environment -> left.evaluate(environment) < right.evaluate(environment);
+                case LESS_EQUAL -> environment -> left.evaluate(environment) <= right.evaluate(environment);
+                default -> throw new IllegalArgumentException("Not a comparison: " + expr.operator.lexeme);
+            };
+        }
+
+        var left = compile(expr.left);
+        var right = compile(expr.right);
+        var operator = expr.operator;
+
+        return switch (operator.type) {
+            case GREATER -> environment ->
+                JvmRuntime.greater(left.evaluate(environment), right.evaluate(environment), operator);
+            case GREATER_EQUAL -> environment ->
+                JvmRuntime.greaterEqual(left.evaluate(environment), right.evaluate(environment), operator);
+            case LESS -> environment ->
+                JvmRuntime.less(left.evaluate(environment), right.evaluate(environment), operator);
+            case LESS_EQUAL -> environment ->
+                JvmRuntime.lessEqual(left.evaluate(environment), right.evaluate(environment), operator);
+            default -> throw new IllegalArgumentException("Not a comparison: " + operator.lexeme);
+        };
+    }
+
+    // Arithmetic on operands that can only be numbers stays unboxed all the way down. Operands that
+    // could be anything are checked by the runtime, once both of them have been evaluated.
+    private NumberEvaluator compileNumber(Expr expr) {
+        switch (expr) {
+            case Expr.Literal literal -> {
+                var value = Numbers.toDouble(literal.value);
+                return environment -> value;
+            }
+            case Expr.Grouping grouping -> {
+                return compileNumber(grouping.expression);
+            }
+            case Expr.Unary unary when Numbers.isNumber(unary.right) -> {
+                var right = compileNumber(unary.right);
+                return environment -> -right.evaluate(environment);
+            }
+            case Expr.Unary unary -> {
+                var right = compile(unary.right);
+                var operator = unary.operator;
+                return environment -> JvmRuntime.negateNumber(right.evaluate(environment), operator);
+            }
+            case Expr.Binary binary when Numbers.isNumber(binary.left) && Numbers.isNumber(binary.right) -> {
+                var left = compileNumber(binary.left);
+                var right = compileNumber(binary.right);
+                return switch (binary.operator.type) {
+                    case PLUS -> environment -> left.evaluate(environment) + right.evaluate(environment);
+                    case MINUS -> environment -> left.evaluate(environment) - right.evaluate(environment);
+                    case STAR -> environment -> left.evaluate(environment) * right.evaluate(environment);
+                    default -> environment -> left.evaluate(environment) / right.evaluate(environment);
+                };
+            }
+            case Expr.Binary binary -> {
+                var left = compile(binary.left);
+                var right = compile(binary.right);
+                var operator = binary.operator;
+                return switch (operator.type) {
+                    case PLUS -> environment ->
+                        JvmRuntime.addNumbers(left.evaluate(environment), right.evaluate(environment), operator);
+                    case MINUS -> environment ->
+                        JvmRuntime.subtractNumbers(left.evaluate(environment), right.evaluate(environment), operator);
+                    case STAR -> environment ->
+                        JvmRuntime.multiplyNumbers(left.evaluate(environment), right.evaluate(environment), operator);
+                    default -> environment ->
+                        JvmRuntime.divideNumbers(left.evaluate(environment), right.evaluate(environment), operator);
+                };
+            }
+            default -> throw new IllegalArgumentException("Not a number: " + expr);
+        }
+    }
+
+    private Executor[] compileAll(List<Stmt> statements) {
+        return statements.stream().map(this::compile).toArray(Executor[]::new);
+    }
+
+    private Executor compile(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private Evaluator compile(Expr expr) {
+        return expr.accept(this);
+    }
+}
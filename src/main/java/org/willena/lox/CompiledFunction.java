@@ -0,0 +1,30 @@
+package org.willena.lox;
+
+import java.util.Arrays;
+import java.util.List;
+
+// The body of a Lox function compiled to JVM bytecode by JvmCompiler. It runs with the same captured
+// cells and arguments the interpreter would have used, so LoxFunction can switch between the two
+// freely. The receiver is the instance a method is called on, and null for anything else.
+interface CompiledFunction {
+    Object call(Interpreter interpreter, Cell[] upvalues, LoxInstance receiver, List<Object> arguments);
+
+    // Like the fixed-arity calls of LoxCallable, for functions that take their arguments directly
+
+    default Object call0(Interpreter interpreter, Cell[] upvalues, LoxInstance receiver) {
+        return call(interpreter, upvalues, receiver, List.of());
+    }
+
+    default Object call1(Interpreter interpreter, Cell[] upvalues, LoxInstance receiver, Object a) {
+        return call(interpreter, upvalues, receiver, Arrays.asList(a));
+    }
+
+    default Object call2(Interpreter interpreter, Cell[] upvalues, LoxInstance receiver, Object a, Object b) {
+        return call(interpreter, upvalues, receiver, Arrays.asList(a, b));
+    }
+
+    default Object call3(
+            Interpreter interpreter, Cell[] upvalues, LoxInstance receiver, Object a, Object b, Object c) {
+        return call(interpreter, upvalues, receiver, Arrays.asList(a, b, c));
+    }
+}
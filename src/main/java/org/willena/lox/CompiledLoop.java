@@ -0,0 +1,9 @@
+package org.willena.lox;
+
+// A hot loop compiled to JVM bytecode by JvmCompiler, for the interpreter to hand over to in the
+// middle of running it. It works on the environment the loop runs in, so it carries on with the
+// variables where the interpreter left them, and gives what the loop statement would: COMPLETED,
+// or the value of a return statement in it.
+interface CompiledLoop {
+    Object run(Interpreter interpreter, Environment environment);
+}
@@ -0,0 +1,647 @@
+package org.willena.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Compiles a resolved program into bytecode for the VM. The resolver has already reported every
+// static error, so the only errors left to find here are programs that exceed the limits of the
+// instruction encoding.
+//
+// Local variables live on the VM's operand stack, so unlike the resolver this keeps track of them
+// itself: a local's slot is its position on the stack relative to the start of the call frame.
+// Variables captured by inner functions are reached through upvalues, the same way as in clox.
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final int MAX_SHORT = 0xffff;
+
+    // How much each instruction grows or shrinks the operand stack. CALL and TAIL_CALL depend on
+    // their operand and are accounted for separately.
+    private static final int[] STACK_EFFECT = new int[OpCode.TAIL_CALL + 1];
+
+    static {
+        STACK_EFFECT[OpCode.CONSTANT] = 1;
+        STACK_EFFECT[OpCode.NIL] = 1;
+        STACK_EFFECT[OpCode.TRUE] = 1;
+        STACK_EFFECT[OpCode.FALSE] = 1;
+        STACK_EFFECT[OpCode.POP] = -1;
+        STACK_EFFECT[OpCode.GET_LOCAL] = 1;
+        STACK_EFFECT[OpCode.GET_GLOBAL] = 1;
+        STACK_EFFECT[OpCode.DEFINE_GLOBAL] = -1;
+        STACK_EFFECT[OpCode.GET_UPVALUE] = 1;
+        STACK_EFFECT[OpCode.SET_PROPERTY] = -1;
+        STACK_EFFECT[OpCode.GET_SUPER] = -1;
+        STACK_EFFECT[OpCode.EQUAL] = -1;
+        STACK_EFFECT[OpCode.NOT_EQUAL] = -1;
+        STACK_EFFECT[OpCode.GREATER] = -1;
+        STACK_EFFECT[OpCode.GREATER_EQUAL] = -1;
+        STACK_EFFECT[OpCode.LESS] = -1;
+        STACK_EFFECT[OpCode.LESS_EQUAL] = -1;
+        STACK_EFFECT[OpCode.ADD] = -1;
+        STACK_EFFECT[OpCode.SUBTRACT] = -1;
+        STACK_EFFECT[OpCode.MULTIPLY] = -1;
+        STACK_EFFECT[OpCode.DIVIDE] = -1;
+        STACK_EFFECT[OpCode.PRINT] = -1;
+        STACK_EFFECT[OpCode.CLOSURE] = 1;
+        STACK_EFFECT[OpCode.CLOSE_UPVALUE] = -1;
+        STACK_EFFECT[OpCode.RETURN] = -1;
+        STACK_EFFECT[OpCode.CLASS] = 1;
+        STACK_EFFECT[OpCode.INHERIT] = -1;
+        STACK_EFFECT[OpCode.METHOD] = -1;
+    }
+
+    private enum FunctionType {
+        SCRIPT,
+        FUNCTION,
+        INITIALIZER,
+        METHOD
+    }
+
+    private static class Local {
+        final String name;
+        final int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private record Upvalue(int index, boolean isLocal) {}
+
+    // Everything we need to know about the function whose body is being compiled
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final VmFunction function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+        int stackDepth = 0;
+
+        FunctionState(FunctionState enclosing, VmFunction function, FunctionType type) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+
+            // Slot zero holds the receiver in methods, and the function being called otherwise
+            var isMethod = type == FunctionType.METHOD || type == FunctionType.INITIALIZER;
+            locals.add(new Local(isMethod ? "this" : "", 0));
+            stackDepth = 1;
+            function.maxStack = 1;
+        }
+    }
+
+    private final VM vm;
+    private FunctionState current = null;
+
+    // Source line given to the instructions being emitted
+    private int line = 0;
+
+    Compiler(VM vm) {
+        this.vm = vm;
+    }
+
+    VmFunction compile(List<Stmt> statements) {
+        current = new FunctionState(null, new VmFunction(null, 0), FunctionType.SCRIPT);
+
+        for (var statement : statements) {
+            compile(statement);
+        }
+
+        return endFunction();
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (var statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        var nameConstant = makeConstant(stmt.name.lexeme);
+        declareVariable(stmt.name);
+
+        line = stmt.name.line;
+        emitOpShort(OpCode.CLASS, nameConstant);
+        defineVariable(stmt.name);
+
+        if (stmt.superclass != null) {
+            visitVariableExpr(stmt.superclass);
+
+            // Methods reach their superclass through an upvalue named 'super', the same way the
+            // tree-walker gives them an environment holding it.
+            beginScope();
+            addLocal("super");
+
+            loadVariable(stmt.name.lexeme);
+            line = stmt.superclass.name.line;
+            emitOp(OpCode.INHERIT);
+        }
+
+        loadVariable(stmt.name.lexeme);
+        for (var method : stmt.methods) {
+            var type = FunctionType.METHOD;
+            if (method.name.lexeme.equals("init")) {
+                type = FunctionType.INITIALIZER;
+            }
+            function(method, type);
+            emitOpShort(OpCode.METHOD, makeConstant(method.name.lexeme));
+        }
+        emitOp(OpCode.POP);
+
+        if (stmt.superclass != null) endScope();
+
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emitOp(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        // Declared before compiling the body, so the function can refer to itself
+        declareVariable(stmt.name);
+        function(stmt, FunctionType.FUNCTION);
+        defineVariable(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+
+        var thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emitOp(OpCode.POP);
+        compile(stmt.thenBranch);
+        var elseJump = emitJump(OpCode.JUMP);
+
+        patchJump(thenJump);
+        // The condition is still on the stack when jumping over the then branch
+        current.stackDepth++;
+        emitOp(OpCode.POP);
+
+        if (stmt.elseBranch != null) compile(stmt.elseBranch);
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emitOp(OpCode.PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.keyword.line;
+        if (stmt.value == null) {
+            emitReturn();
+        } else if (stmt.value instanceof Expr.Call call) {
+            tailCall(call.callee, call.arguments, call.paren);
+        } else if (stmt.value instanceof Expr.Invoke invoke) {
+            tailCall(invoke.callee, invoke.arguments, invoke.paren);
+        } else {
+            compile(stmt.value);
+            emitOp(OpCode.RETURN);
+        }
+        return null;
+    }
+
+    // A call whose result is returned right away reuses the frame of the function returning it,
+    // so tail-recursive functions run in a fixed number of frames however deep they go. Returns
+    // with a value are never at the top level or in initializers, the resolver made sure of that.
+    private void tailCall(Expr callee, List<Expr> arguments, Token paren) {
+        compile(callee);
+        for (var argument : arguments) {
+            compile(argument);
+        }
+
+        line = paren.line;
+        emitByte(OpCode.TAIL_CALL);
+        emitByte((byte)arguments.size());
+        // The callee and its arguments are gone, and so is the frame
+        current.stackDepth -= arguments.size() + 1;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emitOp(OpCode.NIL);
+        }
+
+        declareVariable(stmt.name);
+        defineVariable(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        var loopStart = chunk().count;
+        compile(stmt.condition);
+
+        var exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emitOp(OpCode.POP);
+        compile(stmt.body);
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        // The condition is still on the stack when leaving the loop
+        current.stackDepth++;
+        emitOp(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        line = expr.name.line;
+        storeVariable(expr.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case BANG_EQUAL -> emitOp(OpCode.NOT_EQUAL);
+            case EQUAL_EQUAL -> emitOp(OpCode.EQUAL);
+            case GREATER -> emitOp(OpCode.GREATER);
+            case GREATER_EQUAL -> emitOp(OpCode.GREATER_EQUAL);
+            case LESS -> emitOp(OpCode.LESS);
+            case LESS_EQUAL -> emitOp(OpCode.LESS_EQUAL);
+            case MINUS -> emitOp(OpCode.SUBTRACT);
+            case PLUS -> emitOp(OpCode.ADD);
+            case SLASH -> emitOp(OpCode.DIVIDE);
+            case STAR -> emitOp(OpCode.MULTIPLY);
+            default -> throw new IllegalStateException("Unexpected binary operator " + expr.operator);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        compile(expr.callee);
+        for (var argument : expr.arguments) {
+            compile(argument);
+        }
+
+        line = expr.paren.line;
+        emitByte(OpCode.CALL);
+        emitByte((byte)expr.arguments.size());
+        // The callee and its arguments are replaced by the result
+        current.stackDepth -= expr.arguments.size();
+        return null;
+    }
+
+    // The VM has no separate instruction for method calls, so it makes the bound method and calls it
+    @Override
+    public Void visitInvokeExpr(Expr.Invoke expr) {
+        compile(expr.callee);
+        for (var argument : expr.arguments) {
+            compile(argument);
+        }
+
+        line = expr.paren.line;
+        emitByte(OpCode.CALL);
+        emitByte((byte)expr.arguments.size());
+        current.stackDepth -= expr.arguments.size();
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        line = expr.name.line;
+        emitOpShort(OpCode.GET_PROPERTY, makeConstant(expr.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emitOp(OpCode.NIL);
+        } else if (expr.value instanceof Boolean bool) {
+            emitOp(bool ? OpCode.TRUE : OpCode.FALSE);
+        } else {
+            emitOpShort(OpCode.CONSTANT, makeConstant(expr.value));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+
+        // Short-circuiting - skip the second operand, leaving the first one as the result
+        var op = expr.operator.type == TokenType.OR ? OpCode.JUMP_IF_TRUE : OpCode.JUMP_IF_FALSE;
+        var endJump = emitJump(op);
+        emitOp(OpCode.POP);
+        compile(expr.right);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+
+        // The tree-walker rejects a non-instance before evaluating the value. Unless the value can't
+        // have side effects, check now so errors and output happen in the same order.
+        if (!isSideEffectFree(expr.value)) {
+            line = expr.name.line;
+            emitOp(OpCode.CHECK_INSTANCE);
+        }
+
+        compile(expr.value);
+        line = expr.name.line;
+        emitOpShort(OpCode.SET_PROPERTY, makeConstant(expr.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        line = expr.keyword.line;
+        loadVariable("this");
+        loadVariable("super");
+
+        line = expr.method.line;
+        emitOpShort(OpCode.GET_SUPER, makeConstant(expr.method.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        line = expr.keyword.line;
+        loadVariable("this");
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case BANG -> emitOp(OpCode.NOT);
+            case MINUS -> emitOp(OpCode.NEGATE);
+            default -> throw new IllegalStateException("Unexpected unary operator " + expr.operator);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        line = expr.name.line;
+        loadVariable(expr.name.lexeme);
+        return null;
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void function(Stmt.Function declaration, FunctionType type) {
+        var function = new VmFunction(declaration.name.lexeme, declaration.params.size());
+        var state = new FunctionState(current, function, type);
+        current = state;
+
+        // Parameters and the top-level locals of the body share a scope, as in the resolver
+        beginScope();
+        for (var param : declaration.params) {
+            addLocal(param.lexeme);
+            adjustStack(1);
+        }
+        for (var statement : declaration.body) {
+            compile(statement);
+        }
+        endFunction();
+
+        line = declaration.name.line;
+        emitOpShort(OpCode.CLOSURE, makeConstant(function));
+        for (var upvalue : state.upvalues) {
+            emitByte((byte)(upvalue.isLocal ? 1 : 0));
+            emitShort(upvalue.index);
+        }
+    }
+
+    private VmFunction endFunction() {
+        emitReturn();
+
+        var function = current.function;
+        function.upvalueCount = current.upvalues.size();
+        function.chunk.finish();
+
+        current = current.enclosing;
+        return function;
+    }
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+
+        var locals = current.locals;
+        while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            var local = locals.remove(locals.size() - 1);
+            emitOp(local.isCaptured ? OpCode.CLOSE_UPVALUE : OpCode.POP);
+        }
+    }
+
+    // Top-level declarations are globals; anywhere else the value being declared becomes a local
+    // in the stack slot it already occupies.
+    private void declareVariable(Token name) {
+        if (current.scopeDepth == 0) return;
+        addLocal(name.lexeme);
+    }
+
+    private void defineVariable(Token name) {
+        if (current.scopeDepth > 0) return;
+
+        line = name.line;
+        emitOpShort(OpCode.DEFINE_GLOBAL, vm.globalSlot(name.lexeme));
+    }
+
+    private void addLocal(String name) {
+        if (current.locals.size() > MAX_SHORT) {
+            Lox.error(line, "Too many local variables in function.");
+            return;
+        }
+        current.locals.add(new Local(name, current.scopeDepth));
+    }
+
+    private void loadVariable(String name) {
+        var slot = resolveLocal(current, name);
+        if (slot != -1) {
+            emitOpShort(OpCode.GET_LOCAL, slot);
+            return;
+        }
+
+        var upvalue = resolveUpvalue(current, name);
+        if (upvalue != -1) {
+            emitOpShort(OpCode.GET_UPVALUE, upvalue);
+            return;
+        }
+
+        emitOpShort(OpCode.GET_GLOBAL, vm.globalSlot(name));
+    }
+
+    private void storeVariable(String name) {
+        var slot = resolveLocal(current, name);
+        if (slot != -1) {
+            emitOpShort(OpCode.SET_LOCAL, slot);
+            return;
+        }
+
+        var upvalue = resolveUpvalue(current, name);
+        if (upvalue != -1) {
+            emitOpShort(OpCode.SET_UPVALUE, upvalue);
+            return;
+        }
+
+        emitOpShort(OpCode.SET_GLOBAL, vm.globalSlot(name));
+    }
+
+    private int resolveLocal(FunctionState state, String name) {
+        for (var i = state.locals.size() - 1; i >= 0; i--) {
+            if (state.locals.get(i).name.equals(name)) return i;
+        }
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, String name) {
+        if (state.enclosing == null) return -1;
+
+        var local = resolveLocal(state.enclosing, name);
+        if (local != -1) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, local, true);
+        }
+
+        var upvalue = resolveUpvalue(state.enclosing, name);
+        if (upvalue != -1) {
+            return addUpvalue(state, upvalue, false);
+        }
+
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, int index, boolean isLocal) {
+        var upvalue = new Upvalue(index, isLocal);
+        var existing = state.upvalues.indexOf(upvalue);
+        if (existing != -1) return existing;
+
+        if (state.upvalues.size() > MAX_SHORT) {
+            Lox.error(line, "Too many closure variables in function.");
+            return 0;
+        }
+        state.upvalues.add(upvalue);
+        return state.upvalues.size() - 1;
+    }
+
+    private boolean isSideEffectFree(Expr expr) {
+        if (expr instanceof Expr.Literal || expr instanceof Expr.This) return true;
+        return expr instanceof Expr.Variable variable
+            && resolveLocal(current, variable.name.lexeme) != -1;
+    }
+
+    private Chunk chunk() {
+        return current.function.chunk;
+    }
+
+    private void emitByte(byte value) {
+        chunk().write(value, line);
+    }
+
+    private void emitShort(int value) {
+        chunk().writeShort(value, line);
+    }
+
+    private void emitOp(byte op) {
+        emitByte(op);
+        adjustStack(STACK_EFFECT[op]);
+    }
+
+    private void emitOpShort(byte op, int operand) {
+        emitOp(op);
+        emitShort(operand);
+    }
+
+    private void emitReturn() {
+        if (current.type == FunctionType.INITIALIZER) {
+            emitOpShort(OpCode.GET_LOCAL, 0);
+        } else {
+            emitOp(OpCode.NIL);
+        }
+        emitOp(OpCode.RETURN);
+    }
+
+    private int emitJump(byte op) {
+        emitOp(op);
+        emitShort(MAX_SHORT);
+        return chunk().count - 2;
+    }
+
+    private void patchJump(int offset) {
+        // Jumps are relative to the end of their operand
+        var jump = chunk().count - offset - 2;
+        if (jump > MAX_SHORT) {
+            Lox.error(line, "Too much code to jump over.");
+        }
+
+        chunk().code[offset] = (byte)((jump >> 8) & 0xff);
+        chunk().code[offset + 1] = (byte)(jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        emitOp(OpCode.LOOP);
+
+        var offset = chunk().count - loopStart + 2;
+        if (offset > MAX_SHORT) {
+            Lox.error(line, "Loop body too large.");
+        }
+        emitShort(offset);
+    }
+
+    private int makeConstant(Object value) {
+        var constant = chunk().addConstant(value);
+        if (constant > MAX_SHORT) {
+            Lox.error(line, "Too many constants in one chunk.");
+            return 0;
+        }
+        return constant;
+    }
+
+    private void adjustStack(int effect) {
+        current.stackDepth += effect;
+        if (current.stackDepth > current.function.maxStack) {
+            current.function.maxStack = current.stackDepth;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package org.willena.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Works out ahead of time what doesn't depend on the program running:
+// - arithmetic, comparisons, equality and concatenation of literals, unless they fail, which is
+//   left for the program to report if it ever gets there
+// - reads of local variables that are never assigned and start out as a literal, or as nil
+// - 'and' and 'or' whose left operand is a literal, and 'if' and 'while' whose condition is one
+// - statements after a 'return' in the same block, which never run
+// Folding a variable's initializer to a literal makes its reads literals too, which can in turn
+// fold the expressions they're in.
+class ConstantFolder implements Optimizer, Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    // The values of the never assigned locals whose declarations have been folded to a literal
+    private final Map<Stmt.Var, Object> constants = new HashMap<>();
+
+    @Override
+    public Program optimize(Program program) {
+        constants.clear();
+        return new Program(fold(program.statements()), program.slots());
+    }
+
+    private List<Stmt> fold(List<Stmt> statements) {
+        var folded = new ArrayList<Stmt>();
+        for (var statement : statements) {
+            var result = fold(statement);
+            if (result == null) continue;
+
+            folded.add(result);
+            if (result instanceof Stmt.Return) break;
+        }
+        return folded;
+    }
+
+    // Folds a statement, which gives null when nothing of it is left to run
+    private Stmt fold(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    // Folds a statement that has to stay a statement, as the body of an 'if' or a 'while' does
+    private Stmt foldNested(Stmt stmt) {
+        var folded = fold(stmt);
+        return folded != null ? folded : new Stmt.Block(List.of());
+    }
+
+    private Expr fold(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private void foldBody(Stmt.Function function) {
+        var body = fold(function.body);
+        function.body.clear();
+        function.body.addAll(body);
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        var statements = fold(stmt.statements);
+        return statements.isEmpty() ? null : new Stmt.Block(statements);
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        for (var method : stmt.methods) {
+            foldBody(method);
+        }
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        var expression = fold(stmt.expression);
+        // A literal on its own does nothing
+        if (expression instanceof Expr.Literal) return null;
+        return expression == stmt.expression ? stmt : new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        foldBody(stmt);
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        var condition = fold(stmt.condition);
+        if (condition instanceof Expr.Literal literal) {
+            if (Interpreter.isTruthy(literal.value)) return fold(stmt.thenBranch);
+            return stmt.elseBranch != null ? fold(stmt.elseBranch) : null;
+        }
+
+        var thenBranch = foldNested(stmt.thenBranch);
+        var elseBranch = stmt.elseBranch != null ? fold(stmt.elseBranch) : null;
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        var expression = fold(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return stmt;
+
+        var value = fold(stmt.value);
+        return value == stmt.value ? stmt : new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) {
+            if (!stmt.assigned) constants.put(stmt, null);
+            return stmt;
+        }
+
+        var initializer = fold(stmt.initializer);
+        if (!stmt.assigned && initializer instanceof Expr.Literal literal) {
+            constants.put(stmt, literal.value);
+        }
+        if (initializer == stmt.initializer) return stmt;
+
+        var var = new Stmt.Var(stmt.name, initializer);
+        var.slot = stmt.slot;
+        var.captured = stmt.captured;
+        var.assigned = stmt.assigned;
+        return var;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        var condition = fold(stmt.condition);
+        if (condition instanceof Expr.Literal literal && !Interpreter.isTruthy(literal.value)) return null;
+
+        var body = foldNested(stmt.body);
+        if (condition == stmt.condition && body == stmt.body) return stmt;
+        return new Stmt.While(condition, body);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        var value = fold(expr.value);
+        if (value == expr.value) return expr;
+
+        var assign = new Expr.Assign(expr.name, value);
+        assign.slot = expr.slot;
+        assign.upvalue = expr.upvalue;
+        assign.boxed = expr.boxed;
+        assign.global = expr.global;
+        assign.declaration = expr.declaration;
+        return assign;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        var left = fold(expr.left);
+        var right = fold(expr.right);
+
+        if (left instanceof Expr.Literal l && right instanceof Expr.Literal r) {
+            try {
+                return new Expr.Literal(Interpreter.binary(expr.operator, l.value, r.value));
+            } catch (RuntimeError error) {
+                // Reported when the program gets here, on this operator's line
+            }
+        }
+
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        var callee = fold(expr.callee);
+        var arguments = foldAll(expr.arguments);
+        if (callee == expr.callee && arguments == expr.arguments) return expr;
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        var object = fold(expr.object);
+        return object == expr.object ? expr : new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        var expression = fold(expr.expression);
+        if (expression instanceof Expr.Literal) return expression;
+        return expression == expr.expression ? expr : new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitInvokeExpr(Expr.Invoke expr) {
+        var callee = fold(expr.callee);
+        var arguments = foldAll(expr.arguments);
+        if (callee == expr.callee && arguments == expr.arguments) return expr;
+        return new Expr.Invoke(callee, expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        var left = fold(expr.left);
+        if (left instanceof Expr.Literal literal) {
+            var truthy = Interpreter.isTruthy(literal.value);
+            // Short-circuits to the left operand, or gives the right one
+            if (expr.operator.type == TokenType.OR ? truthy : !truthy) return left;
+            return fold(expr.right);
+        }
+
+        var right = fold(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        var object = fold(expr.object);
+        var value = fold(expr.value);
+        if (object == expr.object && value == expr.value) return expr;
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        var right = fold(expr.right);
+
+        if (right instanceof Expr.Literal literal) {
+            try {
+                return new Expr.Literal(Interpreter.unary(expr.operator, literal.value));
+            } catch (RuntimeError error) {
+                // Reported when the program gets here, on this operator's line
+            }
+        }
+
+        return right == expr.right ? expr : new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        if (expr.declaration != null && constants.containsKey(expr.declaration)) {
+            return new Expr.Literal(constants.get(expr.declaration));
+        }
+        return expr;
+    }
+
+    // The same list when none of the expressions changed
+    private List<Expr> foldAll(List<Expr> expressions) {
+        var folded = new ArrayList<Expr>(expressions.size());
+        var changed = false;
+        for (var expression : expressions) {
+            var result = fold(expression);
+            folded.add(result);
+            changed |= result != expression;
+        }
+        return changed ? folded : expressions;
+    }
+}
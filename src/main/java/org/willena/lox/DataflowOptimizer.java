@@ -0,0 +1,561 @@
+package org.willena.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Takes repeated and unused work out of a program:
+// - copy propagation: a local that's never assigned and starts out as a copy of another one that's
+//   never assigned either is read from that other one instead
+// - dead store elimination: a local that's never read isn't stored to, and its initializer and the
+//   values assigned to it are only evaluated for what they do
+// - loop-invariant code motion: expressions in a loop that give the same value on every iteration
+//   are evaluated once, before it
+// - common subexpression elimination: an expression that's evaluated again in the same straight
+//   run of statements, with nothing in between that could change its value, reuses the first value
+//
+// Only expressions that can't fail and have no effects are ever moved or shared: literals, reads of
+// local variables, and operators on them that can't fail on the values they get. Arithmetic and
+// comparisons only count when their operands are known to be numbers, which a local is when every
+// value it's ever given is the result of arithmetic. Property gets and sets, calls and reads of
+// globals can fail or run code that changes what other expressions give, so they're never moved,
+// shared or dropped, and nothing is moved across them that they could change.
+//
+// The textbook home of these is an SSA form with basic blocks. Every backend here runs the resolved
+// tree, though, so they work on the tree, with the resolver's slots standing in for SSA values: a
+// slot of the function's own frame that isn't assigned in a loop holds the same value all through
+// it. Values that are worked out once are kept in new locals, in slots added to the frame.
+class DataflowOptimizer implements Optimizer {
+    // What's known about a local 'var'. It's found by the token of its name, which stays the same
+    // when a pass rebuilds the declaration, as do the links from its reads and assignments.
+    private static class Local {
+        Stmt.Var declaration;
+        final List<Expr.Variable> reads = new ArrayList<>();
+        final List<Expr.Assign> assignments = new ArrayList<>();
+        // Whether it only ever holds numbers
+        boolean number;
+    }
+
+    private final Map<Token, Local> locals = new HashMap<>();
+    private int scriptSlots;
+    private int temporaries;
+
+    @Override
+    public Program optimize(Program program) {
+        scriptSlots = program.slots();
+        var statements = program.statements();
+
+        analyze(statements);
+        statements = new CopyPropagation().statements(statements);
+        analyze(statements);
+        statements = new DeadStoreElimination().statements(statements);
+        analyze(statements);
+        statements = new LoopInvariantCodeMotion().statements(statements);
+        statements = new CommonSubexpressionElimination().statements(statements);
+
+        locals.clear();
+        return new Program(statements, scriptSlots);
+    }
+
+    // Finds every local 'var' with its reads and assignments, and which of them only hold numbers
+    private void analyze(List<Stmt> statements) {
+        locals.clear();
+        new Rewrite() {
+            @Override
+            Stmt statement(Stmt stmt) {
+                switch (stmt) {
+                    case Stmt.Var var when var.slot != -1 -> local(var.name).declaration = var;
+                    // Passes leave the superclass as it is, but it's a read all the same
+                    case Stmt.Class klass when klass.superclass != null -> expression(klass.superclass);
+                    default -> {}
+                }
+                return super.statement(stmt);
+            }
+
+            @Override
+            Expr expression(Expr expr) {
+                switch (expr) {
+                    case Expr.Variable variable when variable.declaration != null ->
+                        local(variable.declaration.name).reads.add(variable);
+                    case Expr.Assign assign when assign.declaration != null ->
+                        local(assign.declaration.name).assignments.add(assign);
+                    default -> {}
+                }
+                return super.expression(expr);
+            }
+        }.statements(statements);
+
+        // Every local with an initializer starts out as a number, until one of the values it's given
+        // isn't known to be one. What's left at the end only ever gets numbers, or values from
+        // each other.
+        for (var local : locals.values()) {
+            local.number = local.declaration != null && local.declaration.initializer != null;
+        }
+        for (var changed = true; changed; ) {
+            changed = false;
+            for (var local : locals.values()) {
+                if (!local.number) continue;
+                if (isNumber(local.declaration.initializer)
+                        && local.assignments.stream().allMatch(assign -> isNumber(assign.value))) {
+                    continue;
+                }
+                local.number = false;
+                changed = true;
+            }
+        }
+    }
+
+    private Local local(Token name) {
+        return locals.computeIfAbsent(name, key -> new Local());
+    }
+
+    // Whether an expression gives a number whenever it doesn't fail
+    private boolean isNumber(Expr expr) {
+        return switch (expr) {
+            case Expr.Literal literal -> Numbers.isNumber(literal.value);
+            case Expr.Grouping grouping -> isNumber(grouping.expression);
+            case Expr.Variable variable -> variable.declaration != null && local(variable.declaration.name).number;
+            case Expr.Assign assign -> isNumber(assign.value);
+            case Expr.Unary unary -> unary.operator.type == TokenType.MINUS;
+            case Expr.Binary binary -> switch (binary.operator.type) {
+                case MINUS, STAR, SLASH -> true;
+                case PLUS -> isNumber(binary.left) || isNumber(binary.right);
+                default -> false;
+            };
+            default -> false;
+        };
+    }
+
+    // Whether an expression can neither fail nor have an effect
+    private boolean isSafe(Expr expr) {
+        return switch (expr) {
+            case Expr.Literal literal -> true;
+            case Expr.Grouping grouping -> isSafe(grouping.expression);
+            // Locals are always defined where they can be read
+            case Expr.Variable variable -> variable.global == null;
+            case Expr.Unary unary -> isSafe(unary.right)
+                && (unary.operator.type == TokenType.BANG || isNumber(unary.right));
+            case Expr.Binary binary -> isSafe(binary.left) && isSafe(binary.right) && switch (binary.operator.type) {
+                case EQUAL_EQUAL, BANG_EQUAL -> true;
+                default -> isNumber(binary.left) && isNumber(binary.right);
+            };
+            case Expr.Logical logical -> isSafe(logical.left) && isSafe(logical.right);
+            default -> false;
+        };
+    }
+
+    // A safe operator expression, which is worth keeping the value of. A grouping isn't one itself,
+    // which would make it and what's in it the same one twice.
+    private boolean isCandidate(Expr expr) {
+        return switch (expr) {
+            case Expr.Unary unary -> isSafe(unary);
+            case Expr.Binary binary -> isSafe(binary);
+            case Expr.Logical logical -> isSafe(logical);
+            default -> false;
+        };
+    }
+
+    // Whether only the function's own code can change what a read of a variable gives: true of the
+    // function's locals that aren't captured, and of locals that are never assigned at all
+    private static boolean isStable(Expr.Variable read) {
+        if (read.declaration != null && !read.declaration.assigned) return true;
+        return read.global == null && read.upvalue == -1 && !read.boxed;
+    }
+
+    // Whether the variables an expression reads are all stable and in none of the given slots of the
+    // function's frame
+    private static boolean reads(Expr expr, Set<Integer> changing) {
+        return switch (expr) {
+            case Expr.Literal literal -> true;
+            case Expr.Grouping grouping -> reads(grouping.expression, changing);
+            case Expr.Variable variable ->
+                isStable(variable) && !(variable.upvalue == -1 && changing.contains(variable.slot));
+            case Expr.Unary unary -> reads(unary.right, changing);
+            case Expr.Binary binary -> reads(binary.left, changing) && reads(binary.right, changing);
+            case Expr.Logical logical -> reads(logical.left, changing) && reads(logical.right, changing);
+            default -> false;
+        };
+    }
+
+    // The same for two candidates that give the same value, where their variables hold the same
+    // values. A slot holds one variable for as long as it's in scope.
+    private static String key(Expr expr) {
+        return switch (expr) {
+            case Expr.Literal literal -> literal.value == null ? "nil"
+                : literal.value.getClass().getSimpleName() + literal.value.toString().length() + ":" + literal.value;
+            case Expr.Grouping grouping -> key(grouping.expression);
+            case Expr.Variable variable ->
+                variable.upvalue != -1 ? "upvalue " + variable.upvalue : "slot " + variable.slot;
+            case Expr.Unary unary -> "(" + unary.operator.lexeme + " " + key(unary.right) + ")";
+            case Expr.Binary binary ->
+                "(" + binary.operator.lexeme + " " + key(binary.left) + " " + key(binary.right) + ")";
+            case Expr.Logical logical ->
+                "(" + logical.operator.lexeme + " " + key(logical.left) + " " + key(logical.right) + ")";
+            default -> throw new IllegalArgumentException("Not a candidate: " + expr);
+        };
+    }
+
+    // A new local, in a slot of its own, to keep a value in
+    private Stmt.Var temporary(String kind, Expr value, int line, Stmt.Function function) {
+        // The name can't clash with the program's, which the VM resolves locals by
+        var name = new Token(TokenType.IDENTIFIER, "(" + kind + " " + temporaries++ + ")", null, line);
+        var var = new Stmt.Var(name, value);
+        var.slot = function != null ? function.slots++ : scriptSlots++;
+
+        var local = local(name);
+        local.declaration = var;
+        local.number = value != null && isNumber(value);
+        return var;
+    }
+
+    private static Expr.Variable read(Stmt.Var var) {
+        var read = new Expr.Variable(var.name);
+        read.slot = var.slot;
+        read.declaration = var;
+        return read;
+    }
+
+    private static int line(Expr expr) {
+        return switch (expr) {
+            case Expr.Binary binary -> binary.operator.line;
+            case Expr.Unary unary -> unary.operator.line;
+            case Expr.Logical logical -> logical.operator.line;
+            case Expr.Grouping grouping -> line(grouping.expression);
+            default -> 0;
+        };
+    }
+
+    private class CopyPropagation extends Rewrite {
+        // The names declared around the code being rewritten, innermost last. The VM finds locals by
+        // name, so a read can only be swapped for another variable's where that name isn't shadowed.
+        private final List<Token> scope = new ArrayList<>();
+
+        @Override
+        Stmt statement(Stmt stmt) {
+            switch (stmt) {
+                case Stmt.Block block -> {
+                    var depth = scope.size();
+                    var result = super.statement(block);
+                    scope.subList(depth, scope.size()).clear();
+                    return result;
+                }
+                case Stmt.Class klass -> scope.add(klass.name);
+                case Stmt.Function declaration -> scope.add(declaration.name);
+                default -> {}
+            }
+            var result = super.statement(stmt);
+            if (stmt instanceof Stmt.Var var) scope.add(var.name);
+            return result;
+        }
+
+        @Override
+        void body(Stmt.Function declaration) {
+            var depth = scope.size();
+            scope.addAll(declaration.params);
+            super.body(declaration);
+            scope.subList(depth, scope.size()).clear();
+        }
+
+        @Override
+        Expr expression(Expr expr) {
+            if (expr instanceof Expr.Variable variable) {
+                var source = source(variable);
+                if (source == variable) return variable;
+
+                var copy = new Expr.Variable(source.name);
+                copy.slot = source.slot;
+                copy.upvalue = source.upvalue;
+                copy.boxed = source.boxed;
+                copy.declaration = source.declaration;
+                return copy;
+            }
+            return super.expression(expr);
+        }
+
+        // The read of the variable a read can read instead. That read is in the initializer of the
+        // variable, in the same function, so it can only stand in for reads in that function.
+        private Expr.Variable source(Expr.Variable read) {
+            if (read.declaration == null || read.declaration.assigned || read.upvalue != -1) return read;
+
+            var declaration = local(read.declaration.name).declaration;
+            if (declaration == null || !(declaration.initializer instanceof Expr.Variable copied)) return read;
+            if (copied.declaration == null || copied.declaration.assigned) return read;
+            if (!isVisible(copied.declaration.name)) return read;
+
+            return copied.upvalue == -1 ? source(copied) : copied;
+        }
+
+        private boolean isVisible(Token name) {
+            for (var i = scope.size() - 1; i >= 0; i--) {
+                if (scope.get(i).lexeme.equals(name.lexeme)) return scope.get(i) == name;
+            }
+            return false;
+        }
+    }
+
+    private class DeadStoreElimination extends Rewrite {
+        @Override
+        Stmt statement(Stmt stmt) {
+            if (stmt instanceof Stmt.Var var && isDead(var)) {
+                if (var.initializer == null) return null;
+                var initializer = expression(var.initializer);
+                return isSafe(initializer) ? null : new Stmt.Expression(initializer);
+            }
+
+            var result = super.statement(stmt);
+            // What's left of an assignment that's gone may do nothing at all
+            if (result instanceof Stmt.Expression expression && isSafe(expression.expression)) return null;
+            return result;
+        }
+
+        @Override
+        Expr expression(Expr expr) {
+            // An assignment gives the value it assigns
+            if (expr instanceof Expr.Assign assign && assign.declaration != null && isDead(assign.declaration)) {
+                return expression(assign.value);
+            }
+            return super.expression(expr);
+        }
+
+        // Locals that are captured stay, since the functions capturing them expect their cells
+        private boolean isDead(Stmt.Var var) {
+            return var.slot != -1 && !var.captured && local(var.name).reads.isEmpty();
+        }
+    }
+
+    private class LoopInvariantCodeMotion extends Rewrite {
+        @Override
+        Stmt statement(Stmt stmt) {
+            // Loops nested in this one first, so what they hoist can be hoisted further out of it
+            var result = super.statement(stmt);
+            return result instanceof Stmt.While loop ? hoist(loop) : result;
+        }
+
+        // The loop in a block that keeps the values of its invariant expressions in locals
+        // declared before it
+        private Stmt hoist(Stmt.While loop) {
+            var changing = changing(loop);
+            var invariants = new LinkedHashMap<String, Stmt.Var>();
+            var hoister = new Rewrite() {
+                @Override
+                Expr expression(Expr expr) {
+                    if (isCandidate(expr) && reads(expr, changing)) {
+                        var temporary = invariants.computeIfAbsent(key(expr),
+                            key -> temporary("invariant", expr, line(expr), function));
+                        return read(temporary);
+                    }
+                    return super.expression(expr);
+                }
+
+                // Functions declared in the loop run in frames of their own
+                @Override
+                void body(Stmt.Function declaration) {}
+            };
+            hoister.function = function;
+
+            var condition = hoister.expression(loop.condition);
+            var body = hoister.nested(loop.body);
+            if (invariants.isEmpty()) return loop;
+
+            var statements = new ArrayList<Stmt>(invariants.values());
+            statements.add(new Stmt.While(condition, body));
+            return new Stmt.Block(statements);
+        }
+
+        // The slots of the frame that the loop declares or assigns variables in
+        private Set<Integer> changing(Stmt.While loop) {
+            var slots = new HashSet<Integer>();
+            var finder = new Rewrite() {
+                @Override
+                Stmt statement(Stmt stmt) {
+                    switch (stmt) {
+                        case Stmt.Var var -> slots.add(var.slot);
+                        case Stmt.Function declaration -> slots.add(declaration.slot);
+                        case Stmt.Class klass -> {
+                            slots.add(klass.slot);
+                            slots.add(klass.superclassSlot);
+                        }
+                        default -> {}
+                    }
+                    return super.statement(stmt);
+                }
+
+                @Override
+                Expr expression(Expr expr) {
+                    if (expr instanceof Expr.Assign assign && assign.upvalue == -1) slots.add(assign.slot);
+                    return super.expression(expr);
+                }
+
+                @Override
+                void body(Stmt.Function declaration) {}
+            };
+            finder.statement(loop);
+            return slots;
+        }
+    }
+
+    private class CommonSubexpressionElimination extends Rewrite {
+        // Blocks and function bodies, but not the top-level code, whose variables are globals in
+        // the VM
+        @Override
+        Stmt statement(Stmt stmt) {
+            var result = super.statement(stmt);
+            if (!(result instanceof Stmt.Block block)) return result;
+
+            var statements = share(block.statements);
+            return statements == block.statements ? block : new Stmt.Block(statements);
+        }
+
+        @Override
+        void body(Stmt.Function declaration) {
+            super.body(declaration);
+
+            var enclosing = function;
+            function = declaration;
+            var body = share(declaration.body);
+            if (body != declaration.body) {
+                declaration.body.clear();
+                declaration.body.addAll(body);
+            }
+            function = enclosing;
+        }
+
+        // Shares the expressions in each run of statements that don't branch. Nested statements
+        // have been taken care of already.
+        private List<Stmt> share(List<Stmt> statements) {
+            var results = new ArrayList<Stmt>(statements.size());
+            var run = new ArrayList<Stmt>();
+            for (var statement : statements) {
+                if (isStraight(statement)) {
+                    run.add(statement);
+                    continue;
+                }
+                results.addAll(shareRun(run));
+                run.clear();
+                results.add(statement);
+            }
+            results.addAll(shareRun(run));
+            return results.equals(statements) ? statements : results;
+        }
+
+        private static boolean isStraight(Stmt stmt) {
+            return stmt instanceof Stmt.Expression || stmt instanceof Stmt.Print
+                || stmt instanceof Stmt.Var || stmt instanceof Stmt.Return;
+        }
+
+        private List<Stmt> shareRun(List<Stmt> run) {
+            if (run.isEmpty()) return List.of();
+
+            // The slots assigned anywhere in the run. Reading one of them could give a different
+            // value before and after.
+            var assigned = new HashSet<Integer>();
+            var finder = new Rewrite() {
+                @Override
+                Expr expression(Expr expr) {
+                    if (expr instanceof Expr.Assign assign && assign.upvalue == -1) assigned.add(assign.slot);
+                    return super.expression(expr);
+                }
+            };
+            run.forEach(finder::statement);
+
+            // Starting from every candidate, drop those that don't come up at least twice where
+            // they'd be shared, which uncovers the ones inside them, until all that are left do
+            var shared = new HashSet<String>();
+            var counts = new HashMap<String, Integer>();
+            for (var statement : run) {
+                for (var expression : expressions(statement)) {
+                    count(expression, assigned, null, counts, new HashSet<>());
+                }
+            }
+            shared.addAll(counts.keySet());
+            while (true) {
+                counts.clear();
+                var seen = new HashSet<String>();
+                for (var statement : run) {
+                    for (var expression : expressions(statement)) {
+                        count(expression, assigned, shared, counts, seen);
+                    }
+                }
+                if (!shared.removeIf(key -> counts.getOrDefault(key, 0) < 2)) break;
+            }
+            if (shared.isEmpty()) return run;
+
+            var temporaries = new LinkedHashMap<String, Stmt.Var>();
+            var defined = new HashSet<String>();
+            var rewriter = new Rewrite() {
+                @Override
+                Expr expression(Expr expr) {
+                    if (isCandidate(expr) && reads(expr, assigned)) {
+                        var key = key(expr);
+                        if (shared.contains(key)) {
+                            var temporary = temporaries.computeIfAbsent(key,
+                                k -> temporary("common", null, line(expr), function));
+                            if (!defined.add(key)) return read(temporary);
+
+                            // The first one is evaluated, and its value kept
+                            var assign = new Expr.Assign(temporary.name, super.expression(expr));
+                            assign.slot = temporary.slot;
+                            assign.declaration = temporary;
+                            temporary.assigned = true;
+                            local(temporary.name).number = isNumber(expr);
+                            return assign;
+                        }
+                    }
+                    // Right operands of 'and' and 'or' may not be evaluated at all
+                    if (expr instanceof Expr.Logical logical) {
+                        var left = expression(logical.left);
+                        return left == logical.left ? logical : new Expr.Logical(left, logical.operator, logical.right);
+                    }
+                    return super.expression(expr);
+                }
+            };
+            rewriter.function = function;
+
+            var results = new ArrayList<Stmt>();
+            var rewritten = new ArrayList<Stmt>();
+            for (var statement : run) {
+                rewritten.add(rewriter.statement(statement));
+            }
+            results.addAll(temporaries.values());
+            results.addAll(rewritten);
+            return results;
+        }
+
+        private static List<Expr> expressions(Stmt stmt) {
+            return switch (stmt) {
+                case Stmt.Expression expression -> List.of(expression.expression);
+                case Stmt.Print print -> List.of(print.expression);
+                case Stmt.Var var when var.initializer != null -> List.of(var.initializer);
+                case Stmt.Return returnStmt when returnStmt.value != null -> List.of(returnStmt.value);
+                default -> List.of();
+            };
+        }
+
+        // Counts the candidates the way they'd be shared: in the order they're evaluated, and only
+        // inside the first of the same ones, which is still evaluated. With no shared keys given,
+        // counts every candidate.
+        private void count(
+                Expr expr, Set<Integer> assigned, Set<String> shared, Map<String, Integer> counts,
+                Set<String> seen) {
+            if (isCandidate(expr) && reads(expr, assigned)) {
+                var key = key(expr);
+                if (shared == null || shared.contains(key)) {
+                    counts.merge(key, 1, Integer::sum);
+                    if (shared != null && !seen.add(key)) return;
+                }
+            }
+            if (expr instanceof Expr.Logical logical) {
+                count(logical.left, assigned, shared, counts, seen);
+                return;
+            }
+            withOperands(expr, operand -> {
+                count(operand, assigned, shared, counts, seen);
+                return operand;
+            });
+        }
+    }
+}
@@ -1,65 +1,46 @@
 package org.willena.lox;
 
-import java.util.HashMap;
-import java.util.Map;
-
-class Environment {
-    final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
-
-    Environment() {
-        enclosing = null;
-    }
-
-    Environment(Environment enclosing) {
-        this.enclosing = enclosing;
-    }
-
-    void define(String name, Object value) {
-        values.put(name, value);
-    }
-
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
-    }
-
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
-    }
-
-    Environment ancestor(int distance) {
-        var environment = this;
-        for (var i = 0; i < distance; i++) {
-            environment = environment.enclosing;
+import java.util.Arrays;
+
+// The variables of one call of a function, or of one run of the top-level code. Every local the
+// function declares, in any of its blocks, has its own slot, numbered by the resolver. The
+// variables it uses from functions around it are in the cells it captured when it was created.
+//
+// A captured local keeps its cell in its slot, so the function that declares it and the ones that
+// captured it share it. Nothing else keeps a frame once its call returns, which is what lets the
+// interpreter reuse them.
+final class Environment {
+    Object[] slots;
+    Cell[] upvalues;
+
+    Environment(int size, Cell[] upvalues) {
+        this.slots = new Object[size];
+        this.upvalues = upvalues;
+    }
+
+    // Sets the frame up for another call, which may need more slots than the last one
+    Environment reuse(int size, Cell[] upvalues) {
+        if (slots.length < size) slots = new Object[size];
+        this.upvalues = upvalues;
+        return this;
+    }
+
+    // Lets go of the values of a call that's done, which would otherwise be kept alive until the
+    // next call at the same depth
+    void clear(int size) {
+        Arrays.fill(slots, 0, size, null);
+        upvalues = null;
+    }
+
+    // The cells for a function created in this environment. The resolver lists what it captures:
+    // a slot of this environment, holding the cell of a local, or -1 - i for the cell this
+    // environment's own function captured as its upvalue i.
+    Cell[] capture(int[] captures) {
+        var cells = new Cell[captures.length];
+        for (var i = 0; i < captures.length; i++) {
+            var capture = captures[i];
+            cells[i] = capture >= 0 ? (Cell)slots[capture] : upvalues[-1 - capture];
         }
-
-        return environment;
-    }
-
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
-        }
-
-        if (enclosing != null) return enclosing.get(name);
-
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
-    }
-
-    void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
-        }
-
-        if (enclosing != null) {
-            // Assign to enclosing env's variable if that where the variable was defined. A 'var'
-            // definition would create a variable in the current environment, but plain assignment
-            // uses the outer env's variables. This is how global vars work.
-            enclosing.assign(name, value);
-            return;
-        }
-
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+        return cells;
     }
 }
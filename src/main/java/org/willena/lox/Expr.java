@@ -2,13 +2,14 @@ package org.willena.lox;
 
 import java.util.List;
 
-abstract class Expr {
+sealed interface Expr {
     interface Visitor<R> {
         R visitAssignExpr(Assign expr);
         R visitBinaryExpr(Binary expr);
         R visitCallExpr(Call expr);
         R visitGetExpr(Get expr);
         R visitGroupingExpr(Grouping expr);
+        R visitInvokeExpr(Invoke expr);
         R visitLiteralExpr(Literal expr);
         R visitLogicalExpr(Logical expr);
         R visitSetExpr(Set expr);
@@ -18,22 +19,28 @@ abstract class Expr {
         R visitVariableExpr(Variable expr);
     }
 
-    static class Assign extends Expr {
+    final class Assign implements Expr {
         Assign(Token name, Expr value) {
             this.name = name;
             this.value = value;
         }
 
         @Override
-        <R> R accept(Visitor<R> visitor) {
+        public <R> R accept(Visitor<R> visitor) {
             return visitor.visitAssignExpr(this);
         }
 
         final Token name;
         final Expr value;
+
+        int slot = -1;
+        int upvalue = -1;
+        boolean boxed;
+        GlobalVariable global;
+        Stmt.Var declaration;
     }
 
-    static class Binary extends Expr {
+    final class Binary implements Expr {
         Binary(Expr left, Token operator, Expr right) {
             this.left = left;
             this.operator = operator;
@@ -41,16 +48,18 @@ abstract class Expr {
         }
 
         @Override
-        <R> R accept(Visitor<R> visitor) {
+        public <R> R accept(Visitor<R> visitor) {
             return visitor.visitBinaryExpr(this);
         }
 
         final Expr left;
         final Token operator;
         final Expr right;
+
+        Specialization specialization = Specialization.UNINITIALIZED;
     }
 
-    static class Call extends Expr {
+    final class Call implements Expr {
         Call(Expr callee, Token paren, List<Expr> arguments) {
             this.callee = callee;
             this.paren = paren;
@@ -58,57 +67,80 @@ abstract class Expr {
         }
 
         @Override
-        <R> R accept(Visitor<R> visitor) {
+        public <R> R accept(Visitor<R> visitor) {
             return visitor.visitCallExpr(this);
         }
 
         final Expr callee;
         final Token paren;
         final List<Expr> arguments;
+
+        CallCache cache = new CallCache();
     }
 
-    static class Get extends Expr {
+    final class Get implements Expr {
         Get(Expr object, Token name) {
             this.object = object;
             this.name = name;
         }
 
         @Override
-        <R> R accept(Visitor<R> visitor) {
+        public <R> R accept(Visitor<R> visitor) {
             return visitor.visitGetExpr(this);
         }
 
         final Expr object;
         final Token name;
+
+        PropertyCache cache = new PropertyCache();
     }
 
-    static class Grouping extends Expr {
+    final class Grouping implements Expr {
         Grouping(Expr expression) {
             this.expression = expression;
         }
 
         @Override
-        <R> R accept(Visitor<R> visitor) {
+        public <R> R accept(Visitor<R> visitor) {
             return visitor.visitGroupingExpr(this);
         }
 
         final Expr expression;
     }
 
-    static class Literal extends Expr {
+    final class Invoke implements Expr {
+        Invoke(Expr callee, Token paren, List<Expr> arguments) {
+            this.callee = callee;
+            this.paren = paren;
+            this.arguments = arguments;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitInvokeExpr(this);
+        }
+
+        final Expr callee;
+        final Token paren;
+        final List<Expr> arguments;
+
+        CallCache cache = new CallCache();
+    }
+
+    final class Literal implements Expr {
         Literal(Object value) {
             this.value = value;
         }
 
         @Override
-        <R> R accept(Visitor<R> visitor) {
+        public <R> R accept(Visitor<R> visitor) {
             return visitor.visitLiteralExpr(this);
         }
 
         final Object value;
     }
 
-    static class Logical extends Expr {
+    final class Logical implements Expr {
         Logical(Expr left, Token operator, Expr right) {
             this.left = left;
             this.operator = operator;
@@ -116,16 +148,18 @@ abstract class Expr {
         }
 
         @Override
-        <R> R accept(Visitor<R> visitor) {
+        public <R> R accept(Visitor<R> visitor) {
             return visitor.visitLogicalExpr(this);
         }
 
         final Expr left;
         final Token operator;
         final Expr right;
+
+        Specialization specialization = Specialization.UNINITIALIZED;
     }
 
-    static class Set extends Expr {
+    final class Set implements Expr {
         Set(Expr object, Token name, Expr value) {
             this.object = object;
             this.name = name;
@@ -133,70 +167,88 @@ abstract class Expr {
         }
 
         @Override
-        <R> R accept(Visitor<R> visitor) {
+        public <R> R accept(Visitor<R> visitor) {
             return visitor.visitSetExpr(this);
         }
 
         final Expr object;
         final Token name;
         final Expr value;
+
+        PropertyCache cache = new PropertyCache();
     }
 
-    static class Super extends Expr {
+    final class Super implements Expr {
         Super(Token keyword, Token method) {
             this.keyword = keyword;
             this.method = method;
         }
 
         @Override
-        <R> R accept(Visitor<R> visitor) {
+        public <R> R accept(Visitor<R> visitor) {
             return visitor.visitSuperExpr(this);
         }
 
         final Token keyword;
         final Token method;
+
+        This receiver;
+        int upvalue = -1;
+        SuperCache cache = new SuperCache();
     }
 
-    static class This extends Expr {
+    final class This implements Expr {
         This(Token keyword) {
             this.keyword = keyword;
         }
 
         @Override
-        <R> R accept(Visitor<R> visitor) {
+        public <R> R accept(Visitor<R> visitor) {
             return visitor.visitThisExpr(this);
         }
 
         final Token keyword;
+
+        int slot = -1;
+        int upvalue = -1;
+        boolean boxed;
     }
 
-    static class Unary extends Expr {
+    final class Unary implements Expr {
         Unary(Token operator, Expr right) {
             this.operator = operator;
             this.right = right;
         }
 
         @Override
-        <R> R accept(Visitor<R> visitor) {
+        public <R> R accept(Visitor<R> visitor) {
             return visitor.visitUnaryExpr(this);
         }
 
         final Token operator;
         final Expr right;
+
+        Specialization specialization = Specialization.UNINITIALIZED;
     }
 
-    static class Variable extends Expr {
+    final class Variable implements Expr {
         Variable(Token name) {
             this.name = name;
         }
 
         @Override
-        <R> R accept(Visitor<R> visitor) {
+        public <R> R accept(Visitor<R> visitor) {
             return visitor.visitVariableExpr(this);
         }
 
         final Token name;
+
+        int slot = -1;
+        int upvalue = -1;
+        boolean boxed;
+        GlobalVariable global;
+        Stmt.Var declaration;
     }
 
-    abstract <R> R accept(Visitor<R> visitor);
+    <R> R accept(Visitor<R> visitor);
 }
@@ -0,0 +1,35 @@
+package org.willena.lox;
+
+// The storage cell for one global variable. The resolver hands out a cell for every global name it
+// sees, whether or not it has been declared yet, so expressions can hold on to it directly. Whether
+// the variable actually exists is only checked when it's used, as globals may be declared after the
+// code that refers to them.
+class GlobalVariable {
+    final String name;
+    private Object value;
+    private boolean defined = false;
+
+    GlobalVariable(String name) {
+        this.name = name;
+    }
+
+    void define(Object value) {
+        this.value = value;
+        defined = true;
+    }
+
+    Object get(Token name) {
+        if (defined) return value;
+
+        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    }
+
+    void assign(Token name, Object value) {
+        if (defined) {
+            this.value = value;
+            return;
+        }
+
+        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    }
+}
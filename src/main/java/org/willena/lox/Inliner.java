@@ -0,0 +1,525 @@
+package org.willena.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Replaces calls of small functions and methods with the expression they return, when the function
+// a call ends up in is known before the program runs:
+// - calls of a top-level function that's the only declaration of its name and never assigned, from
+//   code that can only run after its declaration has
+// - method calls on 'this' in a method of such a class, when no class that may be a subclass of it
+//   declares a method of the same name
+// - method calls on a local that's never assigned and starts out as an instance of such a class
+// A method is only found that way when no field of its name is ever set, which would hide it.
+//
+// A function is small when its body is a single 'return' of a short expression, which can't assign
+// variables or need anything of the function's frame but its parameters and 'this'. Those are
+// replaced by the arguments and the receiver. Arguments that can be read more than once without
+// changing what they give, like literals and locals that only the caller's own code assigns, can go
+// wherever the parameter is read. Any other argument has to be read exactly once, in the order
+// they're passed in, before anything else in the body can fail or have an effect, so that it's
+// still evaluated just as the call would have. The nodes of the body are copied, with their tokens,
+// so runtime errors in the inlined code are reported on the lines of the function they came from.
+//
+// Functions that may be recursive aren't inlined, and inlined calls don't count towards the depth
+// calls may nest to.
+class Inliner implements Optimizer {
+    // The most nodes the expression a function returns can have to be inlined
+    private static final int MAX_SIZE = 16;
+    // How many inlined calls deep a call can be inlined
+    private static final int MAX_DEPTH = 3;
+
+    // The top-level functions and classes whose names stay bound to them, and the index of the
+    // top-level statement declaring each
+    private final Map<String, Stmt> fixed = new HashMap<>();
+    private final Map<Stmt, Integer> positions = new HashMap<>();
+    // Every class in the program, and the names of all the fields it sets
+    private final List<Stmt.Class> classes = new ArrayList<>();
+    private final Set<String> fields = new HashSet<>();
+    // The functions and methods that may end up calling themselves, going by the fixed functions
+    // and classes the program calls, and the methods of every class of the names it invokes
+    private final Set<Stmt.Function> recursive = new HashSet<>();
+
+    @Override
+    public Program optimize(Program program) {
+        analyze(program.statements());
+
+        var inlining = new Inlining();
+        var statements = new ArrayList<Stmt>(program.statements());
+        var changed = false;
+        for (var i = 0; i < statements.size(); i++) {
+            inlining.position = i;
+            var result = inlining.statement(statements.get(i));
+            changed |= result != statements.get(i);
+            statements.set(i, result);
+        }
+
+        fixed.clear();
+        positions.clear();
+        classes.clear();
+        fields.clear();
+        recursive.clear();
+        return changed ? new Program(statements, program.slots()) : program;
+    }
+
+    private void analyze(List<Stmt> statements) {
+        var declarations = new HashMap<String, Integer>();
+        for (var i = 0; i < statements.size(); i++) {
+            var name = switch (statements.get(i)) {
+                case Stmt.Function function -> function.name;
+                case Stmt.Class klass -> klass.name;
+                case Stmt.Var var -> var.name;
+                default -> null;
+            };
+            if (name == null) continue;
+
+            declarations.merge(name.lexeme, 1, Integer::sum);
+            fixed.put(name.lexeme, statements.get(i));
+            positions.put(statements.get(i), i);
+        }
+
+        var assigned = new HashSet<String>();
+        new Rewrite() {
+            @Override
+            Stmt statement(Stmt stmt) {
+                if (stmt instanceof Stmt.Class klass) classes.add(klass);
+                return super.statement(stmt);
+            }
+
+            @Override
+            Expr expression(Expr expr) {
+                switch (expr) {
+                    case Expr.Assign assign when assign.global != null -> assigned.add(assign.name.lexeme);
+                    case Expr.Set set -> fields.add(set.name.lexeme);
+                    default -> {}
+                }
+                return super.expression(expr);
+            }
+        }.statements(statements);
+
+        fixed.values().removeIf(declaration -> declaration instanceof Stmt.Var);
+        fixed.keySet().removeIf(name -> declarations.get(name) != 1 || assigned.contains(name));
+
+        var methods = new HashMap<String, List<Stmt.Function>>();
+        for (var klass : classes) {
+            for (var method : klass.methods) {
+                methods.computeIfAbsent(method.name.lexeme, name -> new ArrayList<>()).add(method);
+            }
+        }
+        var calls = new HashMap<Stmt.Function, Set<Stmt.Function>>();
+        new Rewrite() {
+            @Override
+            Expr expression(Expr expr) {
+                if (function != null) {
+                    var callees = calls.computeIfAbsent(function, key -> new HashSet<>());
+                    switch (expr) {
+                        case Expr.Call call when call.callee instanceof Expr.Variable variable -> {
+                            switch (fixed(variable)) {
+                                case Stmt.Function callee -> callees.add(callee);
+                                case Stmt.Class klass when findMethod(klass, "init") != null ->
+                                    callees.add(findMethod(klass, "init"));
+                                case null, default -> {}
+                            }
+                        }
+                        case Expr.Invoke invoke -> {
+                            var name = invoke.callee instanceof Expr.Get get
+                                ? get.name : ((Expr.Super)invoke.callee).method;
+                            callees.addAll(methods.getOrDefault(name.lexeme, List.of()));
+                        }
+                        default -> {}
+                    }
+                }
+                return super.expression(expr);
+            }
+        }.statements(statements);
+
+        for (var function : calls.keySet()) {
+            if (calls(function, function, calls, new HashSet<>())) recursive.add(function);
+        }
+    }
+
+    private static boolean calls(
+            Stmt.Function caller, Stmt.Function function, Map<Stmt.Function, Set<Stmt.Function>> calls,
+            Set<Stmt.Function> visited) {
+        for (var callee : calls.getOrDefault(caller, Set.of())) {
+            if (callee == function) return true;
+            if (visited.add(callee) && calls(callee, function, calls, visited)) return true;
+        }
+        return false;
+    }
+
+    // The method a class, or its superclasses, has of a name, when all of them are fixed
+    private Stmt.Function findMethod(Stmt.Class klass, String name) {
+        Stmt.Function found = null;
+        // The last method of a name is the one the class keeps
+        for (var method : klass.methods) {
+            if (method.name.lexeme.equals(name)) found = method;
+        }
+        if (found != null || klass.superclass == null) return found;
+
+        return fixed(klass.superclass) instanceof Stmt.Class superclass ? findMethod(superclass, name) : null;
+    }
+
+    // Whether the instances of a class could be instances of another one too, as far as what it
+    // inherits from is known
+    private boolean mayInheritFrom(Stmt.Class klass, Stmt.Class ancestor) {
+        if (klass.superclass == null) return false;
+        if (!(fixed(klass.superclass) instanceof Stmt.Class superclass)) return true;
+        return superclass == ancestor || mayInheritFrom(superclass, ancestor);
+    }
+
+    private Stmt fixed(Expr.Variable variable) {
+        return variable.global != null ? fixed.get(variable.name.lexeme) : null;
+    }
+
+    // The function a call ends up in, its receiver and its arguments, as the inlined expression
+    // takes them: the receiver first, for a method
+    private record Target(Stmt.Function function, List<Expr> arguments) {}
+
+    private class Inlining extends Rewrite {
+        // The index of the top-level statement being rewritten. Code in it only runs after every
+        // top-level statement before it has.
+        int position;
+        // The fixed class whose methods are being rewritten, if any
+        private Stmt.Class currentClass;
+        // How many inlined calls the code being rewritten is in
+        private int depth;
+        // The names of the locals declared around the code being rewritten. The VM finds variables
+        // by name, so a global read can't be inlined where a local shadows it.
+        private final List<String> scope = new ArrayList<>();
+        private int blocks;
+
+        @Override
+        Stmt statement(Stmt stmt) {
+            var declared = scope.size();
+            switch (stmt) {
+                case Stmt.Block block -> {
+                    blocks++;
+                    var result = super.statement(block);
+                    blocks--;
+                    scope.subList(declared, scope.size()).clear();
+                    return result;
+                }
+                case Stmt.Class klass -> {
+                    declare(klass.name);
+                    var enclosing = currentClass;
+                    currentClass = fixed.get(klass.name.lexeme) == klass ? klass : null;
+                    super.statement(klass);
+                    currentClass = enclosing;
+                    return klass;
+                }
+                case Stmt.Function declaration -> declare(declaration.name);
+                default -> {}
+            }
+            var result = super.statement(stmt);
+            if (stmt instanceof Stmt.Var var) declare(var.name);
+            return result;
+        }
+
+        private void declare(Token name) {
+            if (function != null || blocks > 0) scope.add(name.lexeme);
+        }
+
+        @Override
+        void body(Stmt.Function declaration) {
+            var declared = scope.size();
+            declaration.params.forEach(param -> scope.add(param.lexeme));
+            super.body(declaration);
+            scope.subList(declared, scope.size()).clear();
+        }
+
+        @Override
+        Expr expression(Expr expr) {
+            // Calls in the arguments first, which then get moved into the inlined expression whole
+            var result = super.expression(expr);
+            if (depth == MAX_DEPTH) return result;
+
+            var target = target(result);
+            if (target == null || !isInlinable(target.function())) return result;
+
+            var returned = ((Stmt.Return)target.function().body.getFirst()).value;
+            if (!canSubstitute(returned, target) || !isVisible(returned)) return result;
+
+            var inlined = substitute(returned, target);
+            depth++;
+            inlined = expression(inlined);
+            depth--;
+            return inlined;
+        }
+
+        private Target target(Expr expr) {
+            switch (expr) {
+                case Expr.Call call when call.callee instanceof Expr.Variable variable -> {
+                    if (!(fixed(variable) instanceof Stmt.Function function)) return null;
+                    // Code before the declaration may run before the function is defined
+                    if (positions.get(function) >= position) return null;
+                    if (function.params.size() != call.arguments.size()) return null;
+                    return new Target(function, call.arguments);
+                }
+                case Expr.Invoke invoke when invoke.callee instanceof Expr.Get get -> {
+                    var name = get.name.lexeme;
+                    if (fields.contains(name) || name.equals("init")) return null;
+
+                    var klass = classOf(get.object, name);
+                    var method = klass != null ? findMethod(klass, name) : null;
+                    if (method == null || method.params.size() != invoke.arguments.size()) return null;
+
+                    var arguments = new ArrayList<Expr>();
+                    arguments.add(get.object);
+                    arguments.addAll(invoke.arguments);
+                    return new Target(method, arguments);
+                }
+                default -> {
+                    return null;
+                }
+            }
+        }
+
+        // The class a receiver is an instance of, when that's certain to find the method of a name
+        // in it
+        private Stmt.Class classOf(Expr receiver, String method) {
+            switch (receiver) {
+                case Expr.This thisExpr when currentClass != null -> {
+                    // 'this' may be an instance of a subclass, which may override the method
+                    for (var klass : classes) {
+                        if (klass != currentClass && declaresMethod(klass, method)
+                                && mayInheritFrom(klass, currentClass)) {
+                            return null;
+                        }
+                    }
+                    return currentClass;
+                }
+                case Expr.Variable variable when variable.declaration != null -> {
+                    // A class called gives an instance of itself
+                    if (!variable.declaration.assigned
+                            && variable.declaration.initializer instanceof Expr.Call call
+                            && call.callee instanceof Expr.Variable callee
+                            && fixed(callee) instanceof Stmt.Class klass) {
+                        return klass;
+                    }
+                    return null;
+                }
+                default -> {
+                    return null;
+                }
+            }
+        }
+
+        private static boolean declaresMethod(Stmt.Class klass, String name) {
+            return klass.methods.stream().anyMatch(method -> method.name.lexeme.equals(name));
+        }
+
+        private boolean isInlinable(Stmt.Function function) {
+            if (recursive.contains(function)) return false;
+            if (function.body.size() != 1 || !(function.body.getFirst() instanceof Stmt.Return returnStmt)) {
+                return false;
+            }
+            return returnStmt.value != null && size(returnStmt.value, function) <= MAX_SIZE;
+        }
+
+        // How many nodes an expression has, or more than MAX_SIZE if it has any the inlined copy
+        // couldn't have: assignments, 'super', and reads of anything in the function's frame but
+        // its parameters and 'this'
+        private static int size(Expr expr, Stmt.Function function) {
+            var inlinable = switch (expr) {
+                case Expr.Assign assign -> false;
+                case Expr.Super superExpr -> false;
+                case Expr.This thisExpr -> thisExpr.upvalue == -1;
+                case Expr.Variable variable -> variable.global != null || parameter(variable, function) != -1;
+                default -> true;
+            };
+            if (!inlinable) return MAX_SIZE + 1;
+
+            var size = new int[] {1};
+            Rewrite.withOperands(expr, operand -> {
+                size[0] += size(operand, function);
+                return operand;
+            });
+            return size[0];
+        }
+
+        // The index of the parameter a read reads, with 'this' as the first one of a method, or -1
+        private static int parameter(Expr.Variable variable, Stmt.Function function) {
+            if (variable.global != null || variable.upvalue != -1 || variable.boxed) return -1;
+
+            var first = function.isMethod ? 1 : 0;
+            var index = variable.slot - first;
+            return index >= 0 && index < function.params.size() ? first + index : -1;
+        }
+
+        // Whether the arguments can go where their parameters are read
+        private boolean canSubstitute(Expr returned, Target target) {
+            var events = new ArrayList<Event>();
+            events(returned, target.function(), false, events);
+
+            var arguments = target.arguments();
+            var next = 0;
+            var effects = false;
+            for (var event : events) {
+                if (event.parameter() == -1) {
+                    effects = true;
+                    continue;
+                }
+                if (isCopyable(arguments.get(event.parameter()))) continue;
+
+                // The next argument that has to be evaluated where it was
+                while (next < arguments.size() && isCopyable(arguments.get(next))) next++;
+                if (event.conditional() || effects || event.parameter() != next) return false;
+                next++;
+            }
+            while (next < arguments.size() && isCopyable(arguments.get(next))) next++;
+            return next == arguments.size();
+        }
+
+        // A read of a parameter, or -1 for anything that could fail or have an effect, and whether
+        // it only happens under some condition
+        private record Event(int parameter, boolean conditional) {}
+
+        // What evaluating an expression does, in order
+        private static void events(
+                Expr expr, Stmt.Function function, boolean conditional, List<Event> events) {
+            switch (expr) {
+                case Expr.Literal literal -> {}
+                case Expr.Grouping grouping -> events(grouping.expression, function, conditional, events);
+                case Expr.This thisExpr -> events.add(new Event(0, conditional));
+                case Expr.Variable variable -> {
+                    var parameter = parameter(variable, function);
+                    events.add(new Event(parameter, conditional));
+                }
+                case Expr.Logical logical -> {
+                    events(logical.left, function, conditional, events);
+                    events(logical.right, function, true, events);
+                }
+                case Expr.Unary unary -> {
+                    events(unary.right, function, conditional, events);
+                    if (unary.operator.type != TokenType.BANG) events.add(new Event(-1, conditional));
+                }
+                case Expr.Binary binary -> {
+                    events(binary.left, function, conditional, events);
+                    events(binary.right, function, conditional, events);
+                    var type = binary.operator.type;
+                    if (type != TokenType.EQUAL_EQUAL && type != TokenType.BANG_EQUAL) {
+                        events.add(new Event(-1, conditional));
+                    }
+                }
+                case Expr.Invoke invoke when invoke.callee instanceof Expr.Get get -> {
+                    // The method is looked up before the arguments are evaluated
+                    events(get.object, function, conditional, events);
+                    events.add(new Event(-1, conditional));
+                    for (var argument : invoke.arguments) {
+                        events(argument, function, conditional, events);
+                    }
+                    events.add(new Event(-1, conditional));
+                }
+                default -> {
+                    Rewrite.withOperands(expr, operand -> {
+                        events(operand, function, conditional, events);
+                        return operand;
+                    });
+                    events.add(new Event(-1, conditional));
+                }
+            }
+        }
+
+        // Whether an argument gives the same value, and does nothing else, wherever in the inlined
+        // expression it's evaluated: true of literals, 'this', and locals that only the caller's own
+        // code can assign, which none of the inlined code is
+        private static boolean isCopyable(Expr argument) {
+            return switch (argument) {
+                case Expr.Literal literal -> true;
+                case Expr.This thisExpr -> true;
+                case Expr.Grouping grouping -> isCopyable(grouping.expression);
+                case Expr.Variable variable -> variable.global == null
+                    && (variable.declaration != null && !variable.declaration.assigned
+                        || variable.upvalue == -1 && !variable.boxed);
+                default -> false;
+            };
+        }
+
+        // Whether the globals the expression reads aren't shadowed where it would be inlined
+        private boolean isVisible(Expr expr) {
+            if (expr instanceof Expr.Variable variable && variable.global != null
+                    && scope.contains(variable.name.lexeme)) {
+                return false;
+            }
+            var visible = new boolean[] {true};
+            Rewrite.withOperands(expr, operand -> {
+                visible[0] &= isVisible(operand);
+                return operand;
+            });
+            return visible[0];
+        }
+
+        // A copy of the returned expression, with the arguments in place of the parameters
+        private Expr substitute(Expr expr, Target target) {
+            var function = target.function();
+            return switch (expr) {
+                case Expr.This thisExpr -> argument(target.arguments().getFirst());
+                case Expr.Variable variable -> {
+                    var parameter = parameter(variable, function);
+                    if (parameter != -1) yield argument(target.arguments().get(parameter));
+
+                    var copy = new Expr.Variable(variable.name);
+                    copy.global = variable.global;
+                    yield copy;
+                }
+                case Expr.Literal literal -> new Expr.Literal(literal.value);
+                default -> {
+                    // Every other node is rebuilt, so the copy doesn't share caches with the original
+                    var operands = new ArrayList<Expr>();
+                    Rewrite.withOperands(expr, operand -> {
+                        operands.add(substitute(operand, target));
+                        return operand;
+                    });
+                    yield rebuild(expr, operands);
+                }
+            };
+        }
+
+        // An argument where its parameter is read. The ones that aren't copyable are only read once.
+        private static Expr argument(Expr argument) {
+            return switch (argument) {
+                case Expr.Literal literal -> new Expr.Literal(literal.value);
+                case Expr.Grouping grouping -> new Expr.Grouping(argument(grouping.expression));
+                case Expr.This thisExpr -> {
+                    var copy = new Expr.This(thisExpr.keyword);
+                    copy.slot = thisExpr.slot;
+                    copy.upvalue = thisExpr.upvalue;
+                    copy.boxed = thisExpr.boxed;
+                    yield copy;
+                }
+                case Expr.Variable variable when isCopyable(variable) -> {
+                    var copy = new Expr.Variable(variable.name);
+                    copy.slot = variable.slot;
+                    copy.upvalue = variable.upvalue;
+                    copy.boxed = variable.boxed;
+                    copy.declaration = variable.declaration;
+                    yield copy;
+                }
+                default -> argument;
+            };
+        }
+
+        // A new node like the one given, with the given operands, in the order they're evaluated in
+        private static Expr rebuild(Expr expr, List<Expr> operands) {
+            return switch (expr) {
+                case Expr.Binary binary -> new Expr.Binary(operands.get(0), binary.operator, operands.get(1));
+                case Expr.Call call ->
+                    new Expr.Call(operands.getFirst(), call.paren, operands.subList(1, operands.size()));
+                case Expr.Get get -> new Expr.Get(operands.getFirst(), get.name);
+                case Expr.Grouping grouping -> new Expr.Grouping(operands.getFirst());
+                case Expr.Invoke invoke ->
+                    new Expr.Invoke(operands.getFirst(), invoke.paren, operands.subList(1, operands.size()));
+                case Expr.Logical logical ->
+                    new Expr.Logical(operands.get(0), logical.operator, operands.get(1));
+                case Expr.Set set -> new Expr.Set(operands.get(0), set.name, operands.get(1));
+                case Expr.Unary unary -> new Expr.Unary(unary.operator, operands.getFirst());
+                default -> throw new IllegalArgumentException("Can't inline " + expr);
+            };
+        }
+    }
+}
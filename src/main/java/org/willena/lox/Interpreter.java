@@ -1,25 +1,40 @@
 package org.willena.lox;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+class Interpreter {
 
-    final Environment globals = new Environment();
-    private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    private final Map<String, GlobalVariable> globals = new HashMap<>();
+
+    // The frame of the function running, or of the top-level code
+    private Environment environment = null;
+
+    // How many Lox function calls are running, one inside the other
+    int depth = 0;
+
+    // The frames of the calls running, by how deeply they nest. Inner functions capture cells and
+    // not frames, so a frame is free again once its call returns, and the next call at the same
+    // depth takes it over instead of allocating one.
+    private Environment[] frames = new Environment[64];
 
     Interpreter() {
-        globals.define("clock", new LoxCallable() {
+        global("clock").define(new LoxCallable() {
             @Override
             public int arity() {
                 return 0;
             }
 
             @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
+            public Object call(Interpreter interpreter, List<Object> arguments, Token paren) {
+                return call0(interpreter, paren);
+            }
+
+            @Override
+            public Object call0(Interpreter interpreter, Token paren) {
                 return (double)System.currentTimeMillis() / 1000.0;
             }
 
@@ -30,25 +45,44 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         });
     }
 
-    void interpret(List<Stmt> statements) {
+    // Runs a program with a frame of the given size for the locals of its top-level blocks, as the
+    // resolver worked it out.
+    void interpret(List<Stmt> statements, int slots) {
+        var previous = environment;
         try {
+            environment = new Environment(slots, null);
             for (var statement : statements) {
                 execute(statement);
             }
         } catch (RuntimeError error) {
             Lox.runtimeError(error);
+        } finally {
+            environment = previous;
         }
     }
 
-    @Override
-    public Object visitLiteralExpr(Expr.Literal expr) {
-        return expr.value;
-    }
-
-    @Override
-    public Object visitLogicalExpr(Expr.Logical expr) {
+    private Object evaluateLogical(Expr.Logical expr) {
         var left = evaluate(expr.left);
 
+        switch (expr.specialization) {
+            case BOOLEAN_OR:
+                if (left instanceof Boolean bool) return bool ? left : evaluate(expr.right);
+                break;
+            case BOOLEAN_AND:
+                if (left instanceof Boolean bool) return bool ? evaluate(expr.right) : left;
+                break;
+            case GENERIC:
+                return logical(expr, left);
+            default:
+                expr.specialization = Specialization.forLogical(expr.operator.type, left);
+                return logical(expr, left);
+        }
+
+        expr.specialization = Specialization.GENERIC;
+        return logical(expr, left);
+    }
+
+    private Object logical(Expr.Logical expr, Object left) {
         // Short-circuiting - do not evaluate the second operand
         if (expr.operator.type == TokenType.OR) {
             if (isTruthy(left)) return left;
@@ -59,316 +93,601 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return evaluate(expr.right);
     }
 
-    @Override
-    public Object visitSetExpr(Expr.Set expr) {
+    private Object evaluateSet(Expr.Set expr) {
         var object = evaluate(expr.object);
 
         if (!(object instanceof LoxInstance instance)) {
             throw new RuntimeError(expr.name, "Only instances have fields.");
         }
 
-        var value = evaluate(expr.value);
-        instance.set(expr.name, value);
-
-        return value;
+        return expr.cache.set(instance, expr.name, evaluate(expr.value));
     }
 
-    @Override
-    public Object visitThisExpr(Expr.This expr) {
-        return lookupVariable(expr.keyword, expr);
-    }
+    private Object evaluateUnary(Expr.Unary expr) {
+        var right = evaluate(expr.right);
 
-    @Override
-    public Object visitGroupingExpr(Expr.Grouping expr) {
-        return evaluate(expr.expression);
-    }
+        switch (expr.specialization) {
+            case INTEGER_NEGATE:
+                if (right instanceof Long integer) return Numbers.negate((long)integer);
+                break;
+            case NUMBER_NEGATE:
+                if (right instanceof Double number) return -number;
+                if (right instanceof Long integer) return Numbers.negate((long)integer);
+                break;
+            case BOOLEAN_NOT:
+                if (right instanceof Boolean bool) return !bool;
+                break;
+            case GENERIC:
+                return unary(expr.operator, right);
+            default:
+                expr.specialization = Specialization.forUnary(expr.operator.type, right);
+                return unary(expr.operator, right);
+        }
 
-    @Override
-    public Object visitUnaryExpr(Expr.Unary expr) {
-        var right = evaluate(expr.right);
+        expr.specialization = expr.specialization.generalize(right);
+        return unary(expr.operator, right);
+    }
 
-        switch (expr.operator.type) {
+    static Object unary(Token operator, Object right) {
+        switch (operator.type) {
             case BANG:
                 return !isTruthy(right);
             case MINUS:
-                checkNumberOperand(expr.operator, right);
-                return -(double)right;
+                checkNumberOperand(operator, right);
+                return Numbers.negate(right);
         }
 
         // Unreachable
         return null;
     }
 
-    @Override
-    public Object visitVariableExpr(Expr.Variable expr) {
-        return lookupVariable(expr.name, expr);
-    }
-
-    private Object lookupVariable(Token name, Expr expr) {
-        var distance = locals.get(expr);
-
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
+    private Object evaluateVariable(Expr.Variable expr) {
+        if (expr.slot != -1) {
+            var value = environment.slots[expr.slot];
+            return expr.boxed ? ((Cell)value).value : value;
+        } else if (expr.upvalue != -1) {
+            return environment.upvalues[expr.upvalue].value;
         } else {
-            return globals.get(name);
+            return expr.global.get(expr.name);
         }
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
-        if (operand instanceof Double) return;
+    private static void checkNumberOperand(Token operator, Object operand) {
+        if (Numbers.isNumber(operand)) return;
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    @Override
-    public Object visitBinaryExpr(Expr.Binary expr) {
+    private Object evaluateBinary(Expr.Binary expr) {
         var left = evaluate(expr.left);
         var right = evaluate(expr.right);
 
-        switch (expr.operator.type) {
+        // Fast paths for the operand types this node has seen so far. If a guard fails, the node
+        // stops specializing and takes the generic path from then on.
+        switch (expr.specialization) {
+            case INTEGER_ADD:
+                if (left instanceof Long l && right instanceof Long r) return Numbers.add((long)l, (long)r);
+                break;
+            case INTEGER_SUBTRACT:
+                if (left instanceof Long l && right instanceof Long r) return Numbers.subtract((long)l, (long)r);
+                break;
+            case INTEGER_MULTIPLY:
+                if (left instanceof Long l && right instanceof Long r) return Numbers.multiply((long)l, (long)r);
+                break;
+            case INTEGER_DIVIDE:
+                if (left instanceof Long l && right instanceof Long r) return Numbers.divide((long)l, (long)r);
+                break;
+            case INTEGER_GREATER:
+                if (left instanceof Long l && right instanceof Long r) return l > r;
+                break;
+            case INTEGER_GREATER_EQUAL:
+                if (left instanceof Long l && right instanceof Long r) return l >= r;
+                break;
+            case INTEGER_LESS:
+                if (left instanceof Long l && right instanceof Long r) return l < r;
+                break;
+            case INTEGER_LESS_EQUAL:
+                if (left instanceof Long l && right instanceof Long r) return l <= r;
+                break;
+            case NUMBER_ADD:
+                if (left instanceof Double l && right instanceof Double r) return l + r;
+                if (Numbers.isNumber(left) && Numbers.isNumber(right)) return Numbers.add(left, right);
+                break;
+            case NUMBER_SUBTRACT:
+                if (left instanceof Double l && right instanceof Double r) return l - r;
+                if (Numbers.isNumber(left) && Numbers.isNumber(right)) return Numbers.subtract(left, right);
+                break;
+            case NUMBER_MULTIPLY:
+                if (left instanceof Double l && right instanceof Double r) return l * r;
+                if (Numbers.isNumber(left) && Numbers.isNumber(right)) return Numbers.multiply(left, right);
+                break;
+            case NUMBER_DIVIDE:
+                if (left instanceof Double l && right instanceof Double r) return l / r;
+                if (Numbers.isNumber(left) && Numbers.isNumber(right)) return Numbers.divide(left, right);
+                break;
+            case NUMBER_GREATER:
+                if (left instanceof Double l && right instanceof Double r) return l > r;
+                if (Numbers.isNumber(left) && Numbers.isNumber(right)) return Numbers.greater(left, right);
+                break;
+            case NUMBER_GREATER_EQUAL:
+                if (left instanceof Double l && right instanceof Double r) return l >= r;
+                if (Numbers.isNumber(left) && Numbers.isNumber(right)) return Numbers.greaterEqual(left, right);
+                break;
+            case NUMBER_LESS:
+                if (left instanceof Double l && right instanceof Double r) return l < r;
+                if (Numbers.isNumber(left) && Numbers.isNumber(right)) return Numbers.less(left, right);
+                break;
+            case NUMBER_LESS_EQUAL:
+                if (left instanceof Double l && right instanceof Double r) return l <= r;
+                if (Numbers.isNumber(left) && Numbers.isNumber(right)) return Numbers.lessEqual(left, right);
+                break;
+            case STRING_CONCAT:
+                if (left instanceof String l && right instanceof String r) return l + r;
+                break;
+            case GENERIC:
+                return binary(expr.operator, left, right);
+            default:
+                expr.specialization = Specialization.forBinary(expr.operator.type, left, right);
+                return binary(expr.operator, left, right);
+        }
+
+        expr.specialization = expr.specialization.generalize(left, right);
+        return binary(expr.operator, left, right);
+    }
+
+    static Object binary(Token operator, Object left, Object right) {
+        switch (operator.type) {
             case BANG_EQUAL:
                 return !isEqual(left, right);
             case EQUAL_EQUAL:
                 return isEqual(left, right);
             case GREATER:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left > (double)right;
+                checkNumberOperands(operator, left, right);
+                return Numbers.greater(left, right);
             case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left >= (double)right;
+                checkNumberOperands(operator, left, right);
+                return Numbers.greaterEqual(left, right);
             case LESS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left < (double)right;
+                checkNumberOperands(operator, left, right);
+                return Numbers.less(left, right);
             case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left <= (double)right;
+                checkNumberOperands(operator, left, right);
+                return Numbers.lessEqual(left, right);
             case MINUS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left - (double)right;
+                checkNumberOperands(operator, left, right);
+                return Numbers.subtract(left, right);
             case SLASH:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left / (double)right;
+                checkNumberOperands(operator, left, right);
+                return Numbers.divide(left, right);
             case STAR:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left * (double)right;
+                checkNumberOperands(operator, left, right);
+                return Numbers.multiply(left, right);
             case PLUS:
-                if (left instanceof Double l && right instanceof Double r) { // sum of numbers
-                    return l + r;
+                if (Numbers.isNumber(left) && Numbers.isNumber(right)) { // sum of numbers
+                    return Numbers.add(left, right);
                 }
                 if (left instanceof String l && right instanceof String r) { // string concatenation
                     return l + r;
                 }
-                throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
+                throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
         }
 
         // Unreachable
         return null;
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
-        if (left instanceof Double && right instanceof Double) return;
+    private static void checkNumberOperands(Token operator, Object left, Object right) {
+        if (Numbers.isNumber(left) && Numbers.isNumber(right)) return;
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    @Override
-    public Object visitCallExpr(Expr.Call expr) {
-        var callee = evaluate(expr.callee);
+    private Object evaluateCall(Expr.Call expr) {
+        return call(expr.cache, evaluate(expr.callee), expr.arguments, expr.paren);
+    }
+
+    // Calls of up to three arguments pass them directly, without a list
+    private Object call(CallCache cache, Object callee, List<Expr> arguments, Token paren) {
+        return switch (arguments.size()) {
+            case 0 -> cache.check(callee, 0, paren).call0(this, paren);
+            case 1 -> {
+                var a = evaluate(arguments.get(0));
+                yield cache.check(callee, 1, paren).call1(this, a, paren);
+            }
+            case 2 -> {
+                var a = evaluate(arguments.get(0));
+                var b = evaluate(arguments.get(1));
+                yield cache.check(callee, 2, paren).call2(this, a, b, paren);
+            }
+            case 3 -> {
+                var a = evaluate(arguments.get(0));
+                var b = evaluate(arguments.get(1));
+                var c = evaluate(arguments.get(2));
+                yield cache.check(callee, 3, paren).call3(this, a, b, c, paren);
+            }
+            default -> {
+                var values = evaluateArguments(arguments);
+                yield cache.check(callee, values.size(), paren).call(this, values, paren);
+            }
+        };
+    }
+
+    private Object evaluateInvoke(Expr.Invoke expr) {
+        Object object;
+        Object callee;
+        if (expr.callee instanceof Expr.Get get) {
+            object = evaluate(get.object);
+            callee = get.cache.getMethod(object, get.name);
+        } else {
+            var superExpr = (Expr.Super)expr.callee;
+            object = evaluateThis(superExpr.receiver);
+            callee = superExpr.cache.get(superclass(superExpr), superExpr.method);
+        }
+
+        // Anything but a method, such as a function stored in a field, is called like any value
+        if (!(callee instanceof LoxFunction method && method.isUnbound())) {
+            return call(expr.cache, callee, expr.arguments, expr.paren);
+        }
+
+        var receiver = (LoxInstance)object;
+        var arguments = expr.arguments;
+        var cache = expr.cache;
+        var paren = expr.paren;
+        switch (arguments.size()) {
+            case 0 -> {
+                cache.check(method, 0, paren);
+                return method.call0(this, receiver, paren);
+            }
+            case 1 -> {
+                var a = evaluate(arguments.get(0));
+                cache.check(method, 1, paren);
+                return method.call1(this, receiver, a, paren);
+            }
+            case 2 -> {
+                var a = evaluate(arguments.get(0));
+                var b = evaluate(arguments.get(1));
+                cache.check(method, 2, paren);
+                return method.call2(this, receiver, a, b, paren);
+            }
+            case 3 -> {
+                var a = evaluate(arguments.get(0));
+                var b = evaluate(arguments.get(1));
+                var c = evaluate(arguments.get(2));
+                cache.check(method, 3, paren);
+                return method.call3(this, receiver, a, b, c, paren);
+            }
+            default -> {
+                var values = evaluateArguments(arguments);
+                cache.check(method, values.size(), paren);
+                return method.call(this, receiver, values, paren);
+            }
+        }
+    }
 
-        var arguments = new ArrayList<>();
-        for (var argument : expr.arguments) {
-            arguments.add(evaluate(argument));
+    private List<Object> evaluateArguments(List<Expr> arguments) {
+        var values = new ArrayList<>();
+        for (var argument : arguments) {
+            values.add(evaluate(argument));
         }
+        return values;
+    }
+
+    Object call(Object callee, List<Object> arguments, Token paren) {
+        return callable(callee, arguments.size(), paren).call(this, arguments, paren);
+    }
 
+    // Calls what PropertyCache.getMethod found on the object. Methods are called with the object
+    // as their receiver, anything else is called like any other value.
+    Object invoke(Object object, Object callee, List<Object> arguments, Token paren) {
+        if (callee instanceof LoxFunction method && method.isUnbound()) {
+            callable(method, arguments.size(), paren);
+            return method.call(this, (LoxInstance)object, arguments, paren);
+        }
+
+        return call(callee, arguments, paren);
+    }
+
+    // Checks that a value can be called with the given number of arguments
+    static LoxCallable callable(Object callee, int arguments, Token paren) {
         if (!(callee instanceof LoxCallable function)) {
-            throw new RuntimeError(expr.paren, "Can only call functions and classes.");
+            throw new RuntimeError(paren, "Can only call functions and classes.");
         }
 
-        if (arguments.size() != function.arity()) {
-            var expected = function.arity();
-            var got = arguments.size();
+        if (arguments != function.arity()) {
             throw new RuntimeError(
-                expr.paren,
-                "Expected " + expected + " arguments but got " + got + "."
+                paren,
+                "Expected " + function.arity() + " arguments but got " + arguments + "."
             );
         }
-        return function.call(this, arguments);
+        return function;
     }
 
-    @Override
-    public Object visitGetExpr(Expr.Get expr) {
-        var object = evaluate(expr.object);
-        if (object instanceof LoxInstance instance) {
-            return instance.get(expr.name);
+    private Object evaluateGet(Expr.Get expr) {
+        return expr.cache.get(evaluate(expr.object), expr.name);
+    }
+
+    // The node types are sealed, so these switches cover every one of them without going through
+    // the visitor interfaces. The most common nodes come first.
+
+    private Object evaluate(Expr expr) {
+        return switch (expr) {
+            case Expr.Variable variable -> evaluateVariable(variable);
+            case Expr.Literal literal -> literal.value;
+            case Expr.Binary binary -> evaluateBinary(binary);
+            case Expr.Call call -> evaluateCall(call);
+            case Expr.Invoke invoke -> evaluateInvoke(invoke);
+            case Expr.Get get -> evaluateGet(get);
+            case Expr.Assign assign -> evaluateAssign(assign);
+            case Expr.Logical logical -> evaluateLogical(logical);
+            case Expr.Unary unary -> evaluateUnary(unary);
+            case Expr.Grouping grouping -> evaluate(grouping.expression);
+            case Expr.Set set -> evaluateSet(set);
+            case Expr.This thisExpr -> evaluateThis(thisExpr);
+            case Expr.Super superExpr -> evaluateSuper(superExpr);
+        };
+    }
+
+    // Statements give COMPLETED when they run to the end, and the value returned when they run a
+    // return statement. Blocks, ifs and loops hand that value straight up to the function call,
+    // which stops them from running any further, so a return never needs to unwind the stack.
+    static final Object COMPLETED = new Object();
+
+    private Object execute(Stmt stmt) {
+        switch (stmt) {
+            case Stmt.Expression expression -> evaluate(expression.expression);
+            case Stmt.Block block -> {
+                return executeAll(block.statements);
+            }
+            case Stmt.If ifStmt -> {
+                return executeIf(ifStmt);
+            }
+            case Stmt.Return returnStmt -> {
+                return returnStmt.value == null ? null : evaluate(returnStmt.value);
+            }
+            case Stmt.Var var -> executeVar(var);
+            case Stmt.While whileStmt -> {
+                return executeWhile(whileStmt);
+            }
+            case Stmt.Print print -> executePrint(print);
+            case Stmt.Function function -> executeFunction(function);
+            case Stmt.Class klass -> executeClass(klass);
         }
+        return COMPLETED;
+    }
 
-        throw new RuntimeError(expr.name, "Only instances have properties.");
+    // Records where the resolver found a variable: in a slot of the frame of the function using
+    // it, or among the cells the function captured. Nodes that are neither use their global cell.
+    void resolve(Expr expr, int slot) {
+        switch (expr) {
+            case Expr.Variable variable -> variable.slot = slot;
+            case Expr.Assign assign -> assign.slot = slot;
+            case Expr.This thisExpr -> thisExpr.slot = slot;
+            default -> throw new IllegalArgumentException("Can't resolve " + expr);
+        }
     }
 
-    private Object evaluate(Expr expr) {
-        return expr.accept(this);
+    void resolveUpvalue(Expr expr, int upvalue) {
+        switch (expr) {
+            case Expr.Variable variable -> variable.upvalue = upvalue;
+            case Expr.Assign assign -> assign.upvalue = upvalue;
+            case Expr.This thisExpr -> thisExpr.upvalue = upvalue;
+            case Expr.Super superExpr -> superExpr.upvalue = upvalue;
+            default -> throw new IllegalArgumentException("Can't resolve " + expr);
+        }
+    }
+
+    // Records that the local in the slot of a node is captured, so its slot holds its cell
+    void box(Expr expr) {
+        switch (expr) {
+            case Expr.Variable variable -> variable.boxed = true;
+            case Expr.Assign assign -> assign.boxed = true;
+            case Expr.This thisExpr -> thisExpr.boxed = true;
+            default -> throw new IllegalArgumentException("Can't box " + expr);
+        }
+    }
+
+    void resolveGlobal(Expr expr, String name) {
+        switch (expr) {
+            case Expr.Variable variable -> variable.global = global(name);
+            case Expr.Assign assign -> assign.global = global(name);
+            // A stray 'this' or 'super' has already been reported as an error by the resolver
+            default -> {}
+        }
+    }
+
+    GlobalVariable global(String name) {
+        return globals.computeIfAbsent(name, GlobalVariable::new);
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    // Declarations outside of any block are globals. A captured local gets a new cell each time
+    // its declaration runs, before its value is worked out, so that a function or class can capture
+    // itself.
+    private Cell declare(int slot, boolean captured) {
+        if (!captured) return null;
+
+        var cell = new Cell(null);
+        environment.slots[slot] = cell;
+        return cell;
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    private void define(Token name, int slot, Cell cell, Object value) {
+        if (slot == -1) {
+            global(name.lexeme).define(value);
+        } else if (cell != null) {
+            cell.value = value;
+        } else {
+            environment.slots[slot] = value;
+        }
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean bool) return bool;
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         if (a == null && b == null) return true;
         if (a == null) return false;
+        if (Numbers.isNumber(a) && Numbers.isNumber(b)) return Numbers.isEqual(a, b);
         return a.equals(b);
     }
 
-    @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
-        evaluate(stmt.expression);
-        return null;
+    private void executeFunction(Stmt.Function stmt) {
+        var cell = declare(stmt.slot, stmt.captured);
+        var function = new LoxFunction(stmt, environment.capture(stmt.captures), false);
+        define(stmt.name, stmt.slot, cell, function);
     }
 
-    @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        var function = new LoxFunction(stmt, environment, false);
-        environment.define(stmt.name.lexeme, function);
-        return null;
-    }
-
-    @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    private Object executeIf(Stmt.If stmt) {
         if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
-        return null;
+        return COMPLETED;
     }
 
-    @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    private void executePrint(Stmt.Print stmt) {
         var value = evaluate(stmt.expression);
         System.out.println(stringify(value));
-        return null;
-    }
-
-    @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
-        Object value = null;
-        if (stmt.value != null) value = evaluate(stmt.value);
-
-        throw new Return(value);
     }
 
-    @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
+    private Object executeWhile(Stmt.While stmt) {
         while (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.body);
+            var result = execute(stmt.body);
+            if (result != COMPLETED) return result;
+
+            // Once the loop has been compiled, the compiled code takes over from the next
+            // iteration. It works on the same environments, so it carries on where we stopped, and
+            // gives what the rest of the loop gives.
+            var compiled = stmt.compiled;
+            if (compiled != null) return compiled.run(this, environment);
+            Jit.countBackEdge(stmt);
         }
-        return null;
+        return COMPLETED;
     }
 
-    @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    private void executeVar(Stmt.Var stmt) {
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
 
-        environment.define(stmt.name.lexeme, value);
-        return null;
+        define(stmt.name, stmt.slot, declare(stmt.slot, stmt.captured), value);
     }
 
-    @Override
-    public Object visitAssignExpr(Expr.Assign expr) {
+    private Object evaluateAssign(Expr.Assign expr) {
         var value = evaluate(expr.value);
 
-        var distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
+        if (expr.slot != -1) {
+            if (expr.boxed) {
+                ((Cell)environment.slots[expr.slot]).value = value;
+            } else {
+                environment.slots[expr.slot] = value;
+            }
+        } else if (expr.upvalue != -1) {
+            environment.upvalues[expr.upvalue].value = value;
         } else {
-            globals.assign(expr.name, value);
+            expr.global.assign(expr.name, value);
         }
 
         return value;
     }
 
-    @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
-    }
+    private void executeClass(Stmt.Class stmt) {
+        var cell = declare(stmt.slot, stmt.captured);
 
-    @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
-        Object superclass = null;
+        LoxClass superclass = null;
         if (stmt.superclass != null) {
-            superclass = evaluate(stmt.superclass);
-            if (!(superclass instanceof LoxClass )) {
-                throw new RuntimeError(stmt.superclass.name, "Superclass must be a class.");
-            }
+            superclass = checkSuperclass(evaluate(stmt.superclass), stmt.superclass.name);
+            if (stmt.superclassSlot != -1) environment.slots[stmt.superclassSlot] = new Cell(superclass);
         }
 
-        environment.define(stmt.name.lexeme, null);
-
-        if (stmt.superclass != null) {
-            environment = new Environment(environment);
-            environment.define("super", superclass);
+        var methods = new ArrayList<LoxFunction>();
+        for (var method : stmt.methods) {
+            methods.add(method(method, environment.capture(method.captures)));
         }
+        var klass = createClass(stmt.name.lexeme, superclass, methods);
 
-        Map<String, LoxFunction> methods = new HashMap<>();
-        for (var method : stmt.methods) {
-            var function = new LoxFunction(method, environment, method.name.lexeme.equals("init"));
-            methods.put(method.name.lexeme, function);
+        // Defined only now that the class exists. Methods can still refer to the class by name, as
+        // they look it up when called rather than when the class is created.
+        define(stmt.name, stmt.slot, cell, klass);
+    }
+
+    static LoxFunction method(Stmt.Function declaration, Cell[] upvalues) {
+        return new LoxFunction(declaration, upvalues, declaration.name.lexeme.equals("init"));
+    }
+
+    static LoxClass checkSuperclass(Object superclass, Token name) {
+        if (superclass instanceof LoxClass klass) return klass;
+        throw new RuntimeError(name, "Superclass must be a class.");
+    }
+
+    static LoxClass createClass(String name, LoxClass superclass, List<LoxFunction> methods) {
+        Map<String, LoxFunction> table = new HashMap<>();
+        for (var method : methods) {
+            table.put(method.name(), method);
         }
 
-        LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass)superclass, methods);
+        return new LoxClass(name, superclass, table);
+    }
 
-        if (superclass != null) {
-            environment = environment.enclosing;
+    private Object evaluateThis(Expr.This expr) {
+        if (expr.slot != -1) {
+            var value = environment.slots[expr.slot];
+            return expr.boxed ? ((Cell)value).value : value;
         }
+        return environment.upvalues[expr.upvalue].value;
+    }
 
-        environment.assign(stmt.name, klass);
+    // The superclass of the class a method with 'super' in it belongs to, which the method captured
+    private LoxClass superclass(Expr.Super expr) {
+        return (LoxClass)environment.upvalues[expr.upvalue].value;
+    }
 
-        return null;
+    private Object evaluateSuper(Expr.Super expr) {
+        var object = (LoxInstance)evaluateThis(expr.receiver);
+        return expr.cache.get(superclass(expr), expr.method).bind(object);
     }
 
-    @Override
-    public Object visitSuperExpr(Expr.Super expr) {
-        var distance = locals.get(expr);
-        var superclass = (LoxClass)environment.getAt(distance, "super");
-        var object = (LoxInstance)environment.getAt(distance - 1, "this");
+    // Gives the frame for the call at the current depth, which has to release it when it returns.
+    Environment frame(int size, Cell[] upvalues) {
+        if (depth >= frames.length) frames = Arrays.copyOf(frames, frames.length * 2);
 
-        var method = superclass.findMethod(expr.method.lexeme);
-        if (method == null) {
-            throw new RuntimeError(
-                expr.method, "Undefined property '" + expr.method.lexeme + "'.");
+        var frame = frames[depth];
+        if (frame == null) {
+            frame = frames[depth] = new Environment(size, upvalues);
+            return frame;
         }
-
-        return method.bind(object);
+        return frame.reuse(size, upvalues);
     }
 
-    void executeBlock(List<Stmt> statements, Environment environment) {
+    // Runs the body of a function in its frame
+    Object executeBlock(List<Stmt> statements, Environment environment) {
         var previous = this.environment;
         try {
             this.environment = environment;
-
-            for ( var statement : statements) {
-                execute(statement);
-            }
+            return executeAll(statements);
         } finally {
             this.environment = previous;
         }
     }
 
-    private String stringify(Object object) {
+    // Blocks run in the frame of the function they're in, where the resolver gave their locals
+    // slots of their own
+    private Object executeAll(List<Stmt> statements) {
+        for (var statement : statements) {
+            var result = execute(statement);
+            if (result != COMPLETED) return result;
+        }
+        return COMPLETED;
+    }
+
+    static String stringify(Object object) {
         if (object == null) return "nil";
 
+        // Integers print like the doubles they stand for, exponent and all
+        if (object instanceof Long integer) return stringify((double)integer);
+
         if (object instanceof Double) { // Special case to tweak Java's output for doubles
             var text = object.toString();
             if (text.endsWith(".0")) {
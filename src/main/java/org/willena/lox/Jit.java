@@ -0,0 +1,47 @@
+package org.willena.lox;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+// Decides when interpreted code is hot enough to compile to JVM bytecode, and compiles it on a
+// background thread so the interpreter never has to wait. Functions are promoted after enough
+// calls and switched over to on their next call. Loops are promoted after enough iterations and
+// switched over to in the middle of running, which matters for top-level loops that only ever
+// run once.
+final class Jit {
+    private Jit() {}
+
+    // How many calls, or loop iterations, before code gets compiled. Zero turns compilation off.
+    static int threshold = 1000;
+
+    private static final ExecutorService compiler = Executors.newSingleThreadExecutor(task -> {
+        var thread = new Thread(task, "jlox-jit");
+        // Never keep a finished script running just to compile code that won't be used
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static void countCall(Stmt.Function function) {
+        if (function.calls < threshold && ++function.calls == threshold) {
+            compiler.execute(() -> function.compiled = compile(() -> JvmCompiler.compile(function)));
+        }
+    }
+
+    static void countBackEdge(Stmt.While loop) {
+        if (loop.backEdges < threshold && ++loop.backEdges == threshold) {
+            compiler.execute(() -> loop.compiled = compile(() -> JvmCompiler.compile(loop)));
+        }
+    }
+
+    // Code the compiler fails on, such as code nested too deeply for this thread's stack, keeps
+    // running in the interpreter just like code that's too large to compile. The counts stop at
+    // the threshold, so it's never queued again.
+    private static <T> T compile(Supplier<T> compilation) {
+        try {
+            return compilation.get();
+        } catch (RuntimeException | LinkageError | StackOverflowError error) {
+            return null;
+        }
+    }
+}
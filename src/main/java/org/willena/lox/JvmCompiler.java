@@ -0,0 +1,938 @@
+package org.willena.lox;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+
+// Compiles the body of a hot Lox function, or a hot loop, into a JVM class. It's loaded as a hidden
+// class so HotSpot can optimize it like any other Java code and unload it along with the function.
+//
+// The slots of the function's frame become JVM locals, with the cells of its captured locals in
+// them, and the cells it captured itself come in an array. A loop compiled on its own works on the
+// frame the interpreter was running it in instead, so the interpreter finds the variables where
+// the loop left them.
+//
+// LoxCompiler uses the same code generation for whole programs, compiled ahead of time.
+class JvmCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final String CLASS_NAME = "org/willena/lox/JvmCode";
+    private static final String OBJECT = "java/lang/Object";
+    private static final String DOUBLE = "java/lang/Double";
+    private static final String RUNTIME = "org/willena/lox/JvmRuntime";
+    private static final String INTERPRETER = "org/willena/lox/Interpreter";
+    private static final String ENVIRONMENT = "org/willena/lox/Environment";
+    private static final String CELL = "org/willena/lox/Cell";
+    private static final String TOKEN = "org/willena/lox/Token";
+    private static final String PROPERTY_CACHE = "org/willena/lox/PropertyCache";
+    private static final String CALL_CACHE = "org/willena/lox/CallCache";
+
+    private static final String CALL_DESCRIPTOR =
+        "(Lorg/willena/lox/Interpreter;[Lorg/willena/lox/Cell;Lorg/willena/lox/LoxInstance;Ljava/util/List;)"
+            + "Ljava/lang/Object;";
+    private static final String RUN_DESCRIPTOR =
+        "(Lorg/willena/lox/Interpreter;Lorg/willena/lox/Environment;)Ljava/lang/Object;";
+
+    // Functions of up to three parameters get their arguments directly, in one of the fixed-arity
+    // calls of CompiledFunction
+    private static final int MAX_DIRECT_ARGUMENTS = 3;
+
+    // JVM locals of the generated call method. The slots of the frame come after these.
+    private static final int INTERPRETER_LOCAL = 1;
+    private static final int UPVALUES_LOCAL = 2;
+    private static final int RECEIVER_LOCAL = 3;
+    // The list of arguments, or the first of the arguments passed directly
+    private static final int ARGUMENTS_LOCAL = 4;
+    private static final int CONSTANTS_LOCAL = ARGUMENTS_LOCAL + MAX_DIRECT_ARGUMENTS;
+    // The slots of the interpreter's frame, for a loop
+    private static final int SLOTS_LOCAL = CONSTANTS_LOCAL + 1;
+    private static final int FIRST_LOX_LOCAL = SLOTS_LOCAL + 1;
+
+    final ClassFile classFile;
+
+    // Values the generated code needs at runtime: numbers, strings, tokens for error reporting,
+    // global variable cells and the declarations of nested functions. The class gets them as an
+    // array when it's instantiated.
+    final List<Object> constants = new ArrayList<>();
+
+    private final String className;
+    private final Interpreter interpreter;
+
+    // Set when compiling a loop on its own, which keeps its variables in the interpreter's frame
+    // and ends the way the interpreter's statements do
+    private boolean isLoop = false;
+    private ClassFile.Code code;
+
+    // The interpreter is only needed for top-level code, to look up the cells of the global
+    // variables it declares.
+    JvmCompiler(String className, Interpreter interpreter) {
+        this(className, interpreter, "org/willena/lox/CompiledFunction");
+    }
+
+    private JvmCompiler(String className, Interpreter interpreter, String type) {
+        this.className = className;
+        this.interpreter = interpreter;
+        classFile = new ClassFile(className, OBJECT, type);
+    }
+
+    // Compiles the body of a function, or returns null if it has to stay in the interpreter.
+    static CompiledFunction compile(Stmt.Function function) {
+        var compiler = new JvmCompiler(CLASS_NAME, null);
+        try {
+            compiler.compileFunction(function);
+        } catch (ClassFile.TooLarge error) {
+            return null;
+        }
+        return (CompiledFunction)compiler.load();
+    }
+
+    // Compiles a loop so the interpreter can hand it over in the middle of running it, or returns
+    // null if it has to stay in the interpreter.
+    static CompiledLoop compile(Stmt.While loop) {
+        var compiler = new JvmCompiler(CLASS_NAME, null, "org/willena/lox/CompiledLoop");
+        try {
+            compiler.compileLoop(loop);
+        } catch (ClassFile.TooLarge error) {
+            return null;
+        }
+        return (CompiledLoop)compiler.load();
+    }
+
+    private Object load() {
+        try {
+            var lookup = MethodHandles.lookup().defineHiddenClass(classFile.toByteArray(), true);
+            var constructor = lookup.lookupClass().getConstructor(Object[].class);
+            return constructor.newInstance((Object)constants.toArray());
+        } catch (LinkageError | ReflectiveOperationException error) {
+            return null;
+        }
+    }
+
+    void compileFunction(Stmt.Function function) {
+        var arity = function.params.size();
+        var isDirect = arity <= MAX_DIRECT_ARGUMENTS;
+        if (isDirect) {
+            beginCall("call" + arity, directDescriptor(arity));
+        } else {
+            beginCall("call", CALL_DESCRIPTOR);
+        }
+
+        // 'this' and the parameters come first in the function's frame, just like LoxFunction
+        // puts them there
+        var first = function.isMethod ? 1 : 0;
+        if (function.isMethod) storeSlot(0, () -> code.aload(RECEIVER_LOCAL));
+        for (var i = 0; i < arity; i++) {
+            var index = i;
+            storeSlot(first + i, () -> {
+                if (isDirect) {
+                    code.aload(ARGUMENTS_LOCAL + index);
+                } else {
+                    code.aload(ARGUMENTS_LOCAL);
+                    code.pushInt(index);
+                    code.invokeInterface("java/util/List", "get", "(I)Ljava/lang/Object;");
+                }
+            });
+        }
+        for (var slot : function.capturedParameters) {
+            storeSlot(slot, () -> newCell(() -> loadSlot(slot)));
+        }
+
+        compile(function.body);
+        endCall();
+
+        if (isDirect) addListCall(arity);
+    }
+
+    private static String directDescriptor(int arity) {
+        return "(Lorg/willena/lox/Interpreter;[Lorg/willena/lox/Cell;Lorg/willena/lox/LoxInstance;"
+            + "Ljava/lang/Object;".repeat(arity) + ")Ljava/lang/Object;";
+    }
+
+    // The call with a list of arguments, for callers that have one, takes them out of it and passes
+    // them to the fixed-arity call
+    private void addListCall(int arity) {
+        code = classFile.addMethod(ClassFile.ACC_PUBLIC, "call", CALL_DESCRIPTOR);
+        code.aload(0);
+        code.aload(INTERPRETER_LOCAL);
+        code.aload(UPVALUES_LOCAL);
+        code.aload(RECEIVER_LOCAL);
+        for (var i = 0; i < arity; i++) {
+            code.aload(ARGUMENTS_LOCAL);
+            code.pushInt(i);
+            code.invokeInterface("java/util/List", "get", "(I)Ljava/lang/Object;");
+        }
+        code.invokeVirtual(className, "call" + arity, directDescriptor(arity));
+        code.op(ClassFile.Code.ARETURN);
+        code.end();
+    }
+
+    // Compiles top-level code. It runs with no captured cells and defines its variables as
+    // globals, apart from the locals of its blocks.
+    void compileScript(List<Stmt> statements) {
+        beginCall("call", CALL_DESCRIPTOR);
+        compile(statements);
+        endCall();
+    }
+
+    // The loop runs with the frame it's in, which takes the place of the cells in the local for
+    // them, once the cells are taken out of it
+    private void compileLoop(Stmt.While loop) {
+        isLoop = true;
+        beginCall("run", RUN_DESCRIPTOR);
+
+        code.aload(UPVALUES_LOCAL);
+        code.op(ClassFile.Code.DUP);
+        code.getField(ENVIRONMENT, "slots", "[Ljava/lang/Object;");
+        code.astore(SLOTS_LOCAL);
+        code.getField(ENVIRONMENT, "upvalues", "[Lorg/willena/lox/Cell;");
+        code.astore(UPVALUES_LOCAL);
+
+        visitWhileStmt(loop);
+        endCall();
+    }
+
+    private void beginCall(String name, String descriptor) {
+        classFile.addField(ClassFile.ACC_PRIVATE | ClassFile.ACC_FINAL, "constants", "[Ljava/lang/Object;");
+
+        code = classFile.addMethod(ClassFile.ACC_PUBLIC, "<init>", "([Ljava/lang/Object;)V");
+        code.aload(0);
+        code.invokeSpecial(OBJECT, "<init>", "()V");
+        code.aload(0);
+        code.aload(1);
+        code.putField(className, "constants", "[Ljava/lang/Object;");
+        code.op(ClassFile.Code.RETURN);
+        code.end();
+
+        code = classFile.addMethod(ClassFile.ACC_PUBLIC, name, descriptor);
+        code.aload(0);
+        code.getField(className, "constants", "[Ljava/lang/Object;");
+        code.astore(CONSTANTS_LOCAL);
+    }
+
+    private void endCall() {
+        if (!code.isUnreachable()) {
+            // A loop that runs to the end tells the interpreter so, the same way statements do
+            if (isLoop) {
+                code.getStatic(INTERPRETER, "COMPLETED", "Ljava/lang/Object;");
+            } else {
+                code.op(ClassFile.Code.ACONST_NULL);
+            }
+            code.op(ClassFile.Code.ARETURN);
+        }
+        code.end();
+    }
+
+    // Statements
+
+    // The locals of a block already have slots of their own in the function's frame
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        compile(stmt.statements);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        define(stmt.name, stmt.slot, stmt.captured, () -> {
+            code.pushString(stmt.name.lexeme);
+            if (stmt.superclass == null) {
+                code.op(ClassFile.Code.ACONST_NULL);
+            } else if (stmt.superclassSlot == -1) {
+                superclass(stmt);
+            } else {
+                // The methods capture the superclass, so it goes in a cell before they're created
+                storeSlot(stmt.superclassSlot, () -> newCell(() -> superclass(stmt)));
+                loadSlot(stmt.superclassSlot);
+                cellValue();
+                code.checkCast("org/willena/lox/LoxClass");
+            }
+
+            code.pushInt(stmt.methods.size());
+            code.newArray("org/willena/lox/LoxFunction");
+            for (var i = 0; i < stmt.methods.size(); i++) {
+                var method = stmt.methods.get(i);
+                code.op(ClassFile.Code.DUP);
+                code.pushInt(i);
+                newFunction(method, method.name.lexeme.equals("init"));
+                code.op(ClassFile.Code.AASTORE);
+            }
+            code.invokeStatic(RUNTIME, "createClass",
+                "(Ljava/lang/String;Lorg/willena/lox/LoxClass;[Lorg/willena/lox/LoxFunction;)"
+                    + "Lorg/willena/lox/LoxClass;");
+        });
+        return null;
+    }
+
+    private void superclass(Stmt.Class stmt) {
+        compile(stmt.superclass);
+        loadConstant(stmt.superclass.name, TOKEN);
+        code.invokeStatic(INTERPRETER, "checkSuperclass",
+            "(Ljava/lang/Object;Lorg/willena/lox/Token;)Lorg/willena/lox/LoxClass;");
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        code.op(ClassFile.Code.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        define(stmt.name, stmt.slot, stmt.captured, () -> newFunction(stmt, false));
+        return null;
+    }
+
+    // Pushes a new LoxFunction, with the cells it captures from this function
+    private void newFunction(Stmt.Function function, boolean isInitializer) {
+        code.newObject("org/willena/lox/LoxFunction");
+        code.op(ClassFile.Code.DUP);
+        loadConstant(function, "org/willena/lox/Stmt$Function");
+
+        code.pushInt(function.captures.length);
+        code.newArray(CELL);
+        for (var i = 0; i < function.captures.length; i++) {
+            var capture = function.captures[i];
+            code.op(ClassFile.Code.DUP);
+            code.pushInt(i);
+            if (capture >= 0) {
+                loadSlot(capture);
+                code.checkCast(CELL);
+            } else {
+                loadUpvalue(-1 - capture);
+            }
+            code.op(ClassFile.Code.AASTORE);
+        }
+
+        code.pushInt(isInitializer ? 1 : 0);
+        code.invokeSpecial("org/willena/lox/LoxFunction", "<init>",
+            "(Lorg/willena/lox/Stmt$Function;[Lorg/willena/lox/Cell;Z)V");
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        var elseBranch = new ClassFile.Label();
+        var end = new ClassFile.Label();
+
+        branchIfFalse(stmt.condition, elseBranch);
+        compile(stmt.thenBranch);
+        if (!code.isUnreachable()) code.jump(ClassFile.Code.GOTO, end);
+
+        code.place(elseBranch);
+        if (stmt.elseBranch != null) compile(stmt.elseBranch);
+        code.place(end);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        code.invokeStatic(RUNTIME, "print", "(Ljava/lang/Object;)V");
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        // In a loop compiled on its own, the value goes back to the interpreter, which returns it
+        // from the function the loop is in
+        if (stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            code.op(ClassFile.Code.ACONST_NULL);
+        }
+        code.op(ClassFile.Code.ARETURN);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        define(stmt.name, stmt.slot, stmt.captured, () -> {
+            if (stmt.initializer != null) {
+                compile(stmt.initializer);
+            } else {
+                code.op(ClassFile.Code.ACONST_NULL);
+            }
+        });
+        return null;
+    }
+
+    // Defines a variable with the value pushed by the given code. A captured local gets a new cell
+    // first, the way the interpreter does it.
+    private void define(Token name, int slot, boolean captured, Runnable value) {
+        if (slot == -1) {
+            loadConstant(interpreter.global(name.lexeme), "org/willena/lox/GlobalVariable");
+            value.run();
+            code.invokeVirtual("org/willena/lox/GlobalVariable", "define", "(Ljava/lang/Object;)V");
+        } else if (captured) {
+            storeSlot(slot, () -> newCell(() -> code.op(ClassFile.Code.ACONST_NULL)));
+            loadSlot(slot);
+            code.checkCast(CELL);
+            value.run();
+            code.putField(CELL, "value", "Ljava/lang/Object;");
+        } else {
+            storeSlot(slot, value);
+        }
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        var start = new ClassFile.Label();
+        var exit = new ClassFile.Label();
+
+        code.place(start);
+        branchIfFalse(stmt.condition, exit);
+        compile(stmt.body);
+        if (!code.isUnreachable()) code.jump(ClassFile.Code.GOTO, start);
+        code.place(exit);
+        return null;
+    }
+
+    // Expressions. Each one leaves its value on the operand stack.
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        if (expr.slot != -1 && !expr.boxed) {
+            if (isLoop) {
+                code.aload(SLOTS_LOCAL);
+                code.pushInt(expr.slot);
+                compile(expr.value);
+                code.op(ClassFile.Code.DUP_X2);
+                code.op(ClassFile.Code.AASTORE);
+            } else {
+                compile(expr.value);
+                code.op(ClassFile.Code.DUP);
+                code.astore(FIRST_LOX_LOCAL + expr.slot);
+            }
+        } else if (expr.slot != -1 || expr.upvalue != -1) {
+            if (expr.slot != -1) {
+                loadSlot(expr.slot);
+                code.checkCast(CELL);
+            } else {
+                loadUpvalue(expr.upvalue);
+            }
+            compile(expr.value);
+            code.op(ClassFile.Code.DUP_X1);
+            code.putField(CELL, "value", "Ljava/lang/Object;");
+        } else {
+            loadConstant(expr.global, "org/willena/lox/GlobalVariable");
+            loadConstant(expr.name, TOKEN);
+            compile(expr.value);
+            code.op(ClassFile.Code.DUP_X2);
+            code.invokeVirtual(
+                "org/willena/lox/GlobalVariable", "assign", "(Lorg/willena/lox/Token;Ljava/lang/Object;)V");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        if (Numbers.isNumber(expr)) {
+            compileNumber(expr);
+            box();
+            return null;
+        }
+
+        switch (expr.operator.type) {
+            case EQUAL_EQUAL -> equality(expr, "equal");
+            case BANG_EQUAL -> equality(expr, "notEqual");
+            case PLUS -> arithmetic(expr, "add");
+            case MINUS -> arithmetic(expr, "subtract");
+            case STAR -> arithmetic(expr, "multiply");
+            case SLASH -> arithmetic(expr, "divide");
+            default -> {
+                comparison(expr);
+                code.invokeStatic("java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;");
+            }
+        }
+        return null;
+    }
+
+    private void equality(Expr.Binary expr, String name) {
+        compile(expr.left);
+        compile(expr.right);
+        code.invokeStatic(RUNTIME, name, "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
+    }
+
+    private void arithmetic(Expr.Binary expr, String name) {
+        compile(expr.left);
+        compile(expr.right);
+        loadConstant(expr.operator, TOKEN);
+        code.invokeStatic(
+            RUNTIME, name, "(Ljava/lang/Object;Ljava/lang/Object;Lorg/willena/lox/Token;)Ljava/lang/Object;");
+    }
+
+    // Leaves the result of a comparison operator as an int, ready for a branch
+    private void comparison(Expr.Binary expr) {
+        var name = switch (expr.operator.type) {
+            case GREATER -> "greater";
+            case GREATER_EQUAL -> "greaterEqual";
+            case LESS -> "less";
+            case LESS_EQUAL -> "lessEqual";
+            default -> throw new IllegalArgumentException("Not a comparison: " + expr.operator.lexeme);
+        };
+
+        if (Numbers.isNumber(expr.left) && Numbers.isNumber(expr.right)) {
+            compileNumber(expr.left);
+            compileNumber(expr.right);
+            code.invokeStatic(RUNTIME, name, "(DD)Z");
+            return;
+        }
+
+        var end = new ClassFile.Label();
+        if (isCheckedInline(expr)) {
+            var slow = new ClassFile.Label();
+            checkedNumbers(expr, slow);
+            code.invokeStatic(RUNTIME, name, "(DD)Z");
+            code.jump(ClassFile.Code.GOTO, end);
+            code.place(slow);
+        }
+
+        compile(expr.left);
+        compile(expr.right);
+        loadConstant(expr.operator, TOKEN);
+        code.invokeStatic(RUNTIME, name, "(Ljava/lang/Object;Ljava/lang/Object;Lorg/willena/lox/Token;)Z");
+        code.place(end);
+    }
+
+    // Leaves the value of an expression that can only give a number as a double. Operands that can
+    // be anything are checked by the runtime, once both of them have been evaluated.
+    private void compileNumber(Expr expr) {
+        switch (expr) {
+            case Expr.Literal literal -> code.pushDouble(Numbers.toDouble(literal.value));
+            case Expr.Grouping grouping -> compileNumber(grouping.expression);
+            case Expr.Unary unary when Numbers.isNumber(unary.right) -> {
+                compileNumber(unary.right);
+                code.op(ClassFile.Code.DNEG);
+            }
+            case Expr.Unary unary -> {
+                compile(unary.right);
+                loadConstant(unary.operator, TOKEN);
+                code.invokeStatic(RUNTIME, "negateNumber", "(Ljava/lang/Object;Lorg/willena/lox/Token;)D");
+            }
+            case Expr.Binary binary when Numbers.isNumber(binary.left) && Numbers.isNumber(binary.right) -> {
+                compileNumber(binary.left);
+                compileNumber(binary.right);
+                arithmetic(binary.operator.type);
+            }
+            case Expr.Binary binary -> {
+                var end = new ClassFile.Label();
+                if (isCheckedInline(binary)) {
+                    var slow = new ClassFile.Label();
+                    checkedNumbers(binary, slow);
+                    arithmetic(binary.operator.type);
+                    code.jump(ClassFile.Code.GOTO, end);
+                    code.place(slow);
+                }
+
+                var name = switch (binary.operator.type) {
+                    case PLUS -> "addNumbers";
+                    case MINUS -> "subtractNumbers";
+                    case STAR -> "multiplyNumbers";
+                    default -> "divideNumbers";
+                };
+                compile(binary.left);
+                compile(binary.right);
+                loadConstant(binary.operator, TOKEN);
+                code.invokeStatic(RUNTIME, name, "(Ljava/lang/Object;Ljava/lang/Object;Lorg/willena/lox/Token;)D");
+                code.place(end);
+            }
+            default -> throw new IllegalArgumentException("Not a number: " + expr);
+        }
+    }
+
+    private void arithmetic(TokenType operator) {
+        code.op(switch (operator) {
+            case PLUS -> ClassFile.Code.DADD;
+            case MINUS -> ClassFile.Code.DSUB;
+            case STAR -> ClassFile.Code.DMUL;
+            default -> ClassFile.Code.DDIV;
+        });
+    }
+
+    // Operands that can be anything are checked for doubles right at the site, where they can be,
+    // before falling back on the runtime helper. HotSpot profiles branches per bytecode, and the
+    // helpers are shared by every site: once one of them has seen integers, as it does when the
+    // interpreter hands its values over, HotSpot compiles its integer path into every caller and
+    // keeps their boxes alive. A check here only sees the values of its own site.
+    //
+    // Only local variables are checked, as they can be read again once checked, and a number
+    // operand before one may not change it in between.
+    private static boolean isCheckedInline(Expr.Binary expr) {
+        var left = isLocal(expr.left) || Numbers.isNumber(expr.left) && hasNoEffects(expr.left);
+        var right = isLocal(expr.right) || Numbers.isNumber(expr.right);
+        return left && right;
+    }
+
+    private static boolean isLocal(Expr expr) {
+        return expr instanceof Expr.Variable variable && (variable.slot != -1 || variable.upvalue != -1);
+    }
+
+    private static boolean hasNoEffects(Expr expr) {
+        return switch (expr) {
+            case Expr.Literal ignored -> true;
+            case Expr.Variable ignored -> true;
+            case Expr.Grouping grouping -> hasNoEffects(grouping.expression);
+            case Expr.Unary unary -> hasNoEffects(unary.right);
+            case Expr.Binary binary -> hasNoEffects(binary.left) && hasNoEffects(binary.right);
+            default -> false;
+        };
+    }
+
+    // Jumps to slow unless the local operands hold doubles, and leaves both operands as doubles
+    // otherwise
+    private void checkedNumbers(Expr.Binary expr, ClassFile.Label slow) {
+        for (var operand : List.of(expr.left, expr.right)) {
+            if (Numbers.isNumber(operand)) continue;
+            compile(operand);
+            code.instanceOf(DOUBLE);
+            code.jump(ClassFile.Code.IFEQ, slow);
+        }
+        for (var operand : List.of(expr.left, expr.right)) {
+            if (Numbers.isNumber(operand)) {
+                compileNumber(operand);
+            } else {
+                compile(operand);
+                code.checkCast(DOUBLE);
+                code.invokeVirtual(DOUBLE, "doubleValue", "()D");
+            }
+        }
+    }
+
+    // Boxes the double on top of the stack, where a number is used as a value. It stays a Double
+    // even when it's an integer: a box the JVM can see through is worth more than a Long.
+    private void box() {
+        code.invokeStatic("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;");
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        code.aload(INTERPRETER_LOCAL);
+        if (isDirect(expr.arguments)) loadConstant(expr.cache, CALL_CACHE);
+        compile(expr.callee);
+        call("call", "", expr.arguments, expr.paren);
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        // The compiled code keeps using the node's inline cache, warmed up by the interpreter
+        loadConstant(expr.cache, PROPERTY_CACHE);
+        compile(expr.object);
+        loadConstant(expr.name, TOKEN);
+        code.invokeVirtual(
+            PROPERTY_CACHE, "get", "(Ljava/lang/Object;Lorg/willena/lox/Token;)Ljava/lang/Object;");
+        return null;
+    }
+
+    @Override
+    public Void visitInvokeExpr(Expr.Invoke expr) {
+        // The receiver, then what to call on it
+        code.aload(INTERPRETER_LOCAL);
+        if (isDirect(expr.arguments)) loadConstant(expr.cache, CALL_CACHE);
+        if (expr.callee instanceof Expr.Super superExpr) {
+            compile(superExpr.receiver);
+            superMethod(superExpr);
+        } else {
+            var get = (Expr.Get)expr.callee;
+            compile(get.object);
+            code.op(ClassFile.Code.DUP);
+            loadConstant(get.cache, PROPERTY_CACHE);
+            code.op(ClassFile.Code.SWAP);
+            loadConstant(get.name, TOKEN);
+            code.invokeVirtual(
+                PROPERTY_CACHE, "getMethod", "(Ljava/lang/Object;Lorg/willena/lox/Token;)Ljava/lang/Object;");
+        }
+
+        call("invoke", "Ljava/lang/Object;", expr.arguments, expr.paren);
+        return null;
+    }
+
+    // Calls of up to three arguments go through the site's cache, pushed before the callee, and
+    // pass the arguments directly
+    private static boolean isDirect(List<Expr> arguments) {
+        return arguments.size() <= 3;
+    }
+
+    // Pushes the arguments and calls one of the JvmRuntime call or invoke helpers. Invokes take
+    // the receiver before the callee.
+    private void call(String helper, String receiver, List<Expr> arguments, Token paren) {
+        if (isDirect(arguments)) {
+            for (var argument : arguments) {
+                compile(argument);
+            }
+            loadConstant(paren, TOKEN);
+            code.invokeStatic(RUNTIME, helper + arguments.size(),
+                "(Lorg/willena/lox/Interpreter;Lorg/willena/lox/CallCache;" + receiver + "Ljava/lang/Object;"
+                    + "Ljava/lang/Object;".repeat(arguments.size()) + "Lorg/willena/lox/Token;)Ljava/lang/Object;");
+            return;
+        }
+
+        code.pushInt(arguments.size());
+        code.newArray(OBJECT);
+        for (var i = 0; i < arguments.size(); i++) {
+            code.op(ClassFile.Code.DUP);
+            code.pushInt(i);
+            compile(arguments.get(i));
+            code.op(ClassFile.Code.AASTORE);
+        }
+        loadConstant(paren, TOKEN);
+        code.invokeStatic(RUNTIME, helper, "(Lorg/willena/lox/Interpreter;" + receiver
+            + "Ljava/lang/Object;[Ljava/lang/Object;Lorg/willena/lox/Token;)Ljava/lang/Object;");
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            code.op(ClassFile.Code.ACONST_NULL);
+        } else if (expr.value instanceof Boolean bool) {
+            code.getStatic("java/lang/Boolean", bool ? "TRUE" : "FALSE", "Ljava/lang/Boolean;");
+        } else if (expr.value instanceof Long integer) {
+            // Compiled arithmetic gives doubles, so integers are loaded as doubles too, and the
+            // runtime helpers see the one type
+            loadConstant((double)integer, null);
+        } else {
+            // Numbers stay boxed in the constants array, so every evaluation shares the one Double
+            loadConstant(expr.value, null);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        var end = new ClassFile.Label();
+
+        compile(expr.left);
+        code.op(ClassFile.Code.DUP);
+        code.invokeStatic(INTERPRETER, "isTruthy", "(Ljava/lang/Object;)Z");
+        code.jump(expr.operator.type == TokenType.OR ? ClassFile.Code.IFNE : ClassFile.Code.IFEQ, end);
+        code.op(ClassFile.Code.POP);
+        compile(expr.right);
+        code.place(end);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        loadConstant(expr.cache, PROPERTY_CACHE);
+        compile(expr.object);
+        loadConstant(expr.name, TOKEN);
+        code.invokeStatic(
+            RUNTIME, "instanceForSet", "(Ljava/lang/Object;Lorg/willena/lox/Token;)Lorg/willena/lox/LoxInstance;");
+        loadConstant(expr.name, TOKEN);
+        compile(expr.value);
+        code.invokeVirtual(PROPERTY_CACHE, "set",
+            "(Lorg/willena/lox/LoxInstance;Lorg/willena/lox/Token;Ljava/lang/Object;)Ljava/lang/Object;");
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        superMethod(expr);
+        compile(expr.receiver);
+        code.checkCast("org/willena/lox/LoxInstance");
+        code.invokeVirtual("org/willena/lox/LoxFunction", "bind",
+            "(Lorg/willena/lox/LoxInstance;)Lorg/willena/lox/LoxFunction;");
+        return null;
+    }
+
+    // Pushes the unbound superclass method an Expr.Super refers to
+    private void superMethod(Expr.Super expr) {
+        loadConstant(expr.cache, "org/willena/lox/SuperCache");
+        loadUpvalue(expr.upvalue);
+        cellValue();
+        code.checkCast("org/willena/lox/LoxClass");
+        loadConstant(expr.method, TOKEN);
+        code.invokeVirtual("org/willena/lox/SuperCache", "get",
+            "(Lorg/willena/lox/LoxClass;Lorg/willena/lox/Token;)Lorg/willena/lox/LoxFunction;");
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        loadVariable(expr.slot, expr.upvalue, expr.boxed);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        if (Numbers.isNumber(expr)) {
+            compileNumber(expr);
+            box();
+            return null;
+        }
+
+        compile(expr.right);
+        code.invokeStatic(RUNTIME, "not", "(Ljava/lang/Object;)Ljava/lang/Object;");
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        if (expr.slot == -1 && expr.upvalue == -1) {
+            loadConstant(expr.global, "org/willena/lox/GlobalVariable");
+            loadConstant(expr.name, TOKEN);
+            code.invokeVirtual("org/willena/lox/GlobalVariable", "get", "(Lorg/willena/lox/Token;)Ljava/lang/Object;");
+        } else {
+            loadVariable(expr.slot, expr.upvalue, expr.boxed);
+        }
+        return null;
+    }
+
+    // Conditions are compiled straight into branches, so comparisons and logical operators don't
+    // have to produce a Boolean only for the branch to take it apart again.
+
+    private void branchIfFalse(Expr condition, ClassFile.Label target) {
+        switch (condition) {
+            case Expr.Grouping grouping -> branchIfFalse(grouping.expression, target);
+            case Expr.Logical logical when logical.operator.type == TokenType.AND -> {
+                branchIfFalse(logical.left, target);
+                branchIfFalse(logical.right, target);
+            }
+            case Expr.Logical logical -> {
+                var isTrue = new ClassFile.Label();
+                branchIfTrue(logical.left, isTrue);
+                branchIfFalse(logical.right, target);
+                code.place(isTrue);
+            }
+            case Expr.Unary unary when unary.operator.type == TokenType.BANG -> branchIfTrue(unary.right, target);
+            default -> {
+                test(condition);
+                code.jump(ClassFile.Code.IFEQ, target);
+            }
+        }
+    }
+
+    private void branchIfTrue(Expr condition, ClassFile.Label target) {
+        switch (condition) {
+            case Expr.Grouping grouping -> branchIfTrue(grouping.expression, target);
+            case Expr.Logical logical when logical.operator.type == TokenType.OR -> {
+                branchIfTrue(logical.left, target);
+                branchIfTrue(logical.right, target);
+            }
+            case Expr.Logical logical -> {
+                var isFalse = new ClassFile.Label();
+                branchIfFalse(logical.left, isFalse);
+                branchIfTrue(logical.right, target);
+                code.place(isFalse);
+            }
+            case Expr.Unary unary when unary.operator.type == TokenType.BANG -> branchIfFalse(unary.right, target);
+            default -> {
+                test(condition);
+                code.jump(ClassFile.Code.IFNE, target);
+            }
+        }
+    }
+
+    // Leaves the truthiness of an expression as an int
+    private void test(Expr condition) {
+        if (condition instanceof Expr.Binary binary) {
+            switch (binary.operator.type) {
+                case GREATER, GREATER_EQUAL, LESS, LESS_EQUAL -> {
+                    comparison(binary);
+                    return;
+                }
+                case EQUAL_EQUAL -> {
+                    compile(binary.left);
+                    compile(binary.right);
+                    code.invokeStatic(INTERPRETER, "isEqual", "(Ljava/lang/Object;Ljava/lang/Object;)Z");
+                    return;
+                }
+                default -> {}
+            }
+        }
+
+        compile(condition);
+        code.invokeStatic(INTERPRETER, "isTruthy", "(Ljava/lang/Object;)Z");
+    }
+
+    // Pushes the value of a local, in a slot of the frame and maybe boxed in a cell there, or of a
+    // variable captured from further out
+    private void loadVariable(int slot, int upvalue, boolean boxed) {
+        if (slot == -1) {
+            loadUpvalue(upvalue);
+            cellValue();
+        } else {
+            loadSlot(slot);
+            if (boxed) {
+                code.checkCast(CELL);
+                cellValue();
+            }
+        }
+    }
+
+    // Slots of the frame are JVM locals, except in a loop, which uses the interpreter's frame
+
+    private void loadSlot(int slot) {
+        if (isLoop) {
+            code.aload(SLOTS_LOCAL);
+            code.pushInt(slot);
+            code.op(ClassFile.Code.AALOAD);
+        } else {
+            code.aload(FIRST_LOX_LOCAL + slot);
+        }
+    }
+
+    // Stores the value pushed by the given code in a slot, as it is
+    private void storeSlot(int slot, Runnable value) {
+        if (isLoop) {
+            code.aload(SLOTS_LOCAL);
+            code.pushInt(slot);
+            value.run();
+            code.op(ClassFile.Code.AASTORE);
+        } else {
+            value.run();
+            code.astore(FIRST_LOX_LOCAL + slot);
+        }
+    }
+
+    private void loadUpvalue(int upvalue) {
+        code.aload(UPVALUES_LOCAL);
+        code.pushInt(upvalue);
+        code.op(ClassFile.Code.AALOAD);
+    }
+
+    // Replaces the cell on top of the stack with its value
+    private void cellValue() {
+        code.getField(CELL, "value", "Ljava/lang/Object;");
+    }
+
+    // Pushes a new cell holding the value pushed by the given code
+    private void newCell(Runnable value) {
+        code.newObject(CELL);
+        code.op(ClassFile.Code.DUP);
+        value.run();
+        code.invokeSpecial(CELL, "<init>", "(Ljava/lang/Object;)V");
+    }
+
+    private void loadConstant(Object value, String type) {
+        var index = constants.indexOf(value);
+        if (index == -1) {
+            index = constants.size();
+            constants.add(value);
+        }
+
+        code.aload(CONSTANTS_LOCAL);
+        code.pushInt(index);
+        code.op(ClassFile.Code.AALOAD);
+        if (type != null) code.checkCast(type);
+    }
+
+    private void compile(List<Stmt> statements) {
+        for (var statement : statements) {
+            // Nothing after a return can run
+            if (code.isUnreachable()) return;
+            compile(statement);
+        }
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+}
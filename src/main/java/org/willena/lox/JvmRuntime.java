@@ -0,0 +1,244 @@
+package org.willena.lox;
+
+import java.util.Arrays;
+import java.util.List;
+
+// Helpers called from the bytecode JvmCompiler generates, and from ClosureCompiler's closures. Each
+// one takes the common case inline and leaves everything else, errors included, to the
+// interpreter's own code, so compiled code behaves exactly like interpreted code. They are small
+// enough for HotSpot to inline into their callers.
+final class JvmRuntime {
+    private JvmRuntime() {}
+
+    // Doubles come first, as that's what compiled arithmetic gives. Integers, and integers mixed
+    // with doubles, are still handled here rather than by the interpreter: once a path that hands
+    // the boxed operands to Interpreter.binary has been taken, HotSpot keeps it in every caller the
+    // helper is inlined into, and can no longer eliminate the boxes there. Integers come in
+    // wherever the interpreter hands its values to compiled code.
+
+    static Object add(Object left, Object right, Token operator) {
+        if (left instanceof Double l && right instanceof Double r) return l + r;
+        if (Numbers.isNumber(left) && Numbers.isNumber(right)) return Numbers.add(left, right);
+        return Interpreter.binary(operator, left, right);
+    }
+
+    static Object subtract(Object left, Object right, Token operator) {
+        if (left instanceof Double l && right instanceof Double r) return l - r;
+        if (Numbers.isNumber(left) && Numbers.isNumber(right)) return Numbers.subtract(left, right);
+        return Interpreter.binary(operator, left, right);
+    }
+
+    static Object multiply(Object left, Object right, Token operator) {
+        if (left instanceof Double l && right instanceof Double r) return l * r;
+        if (Numbers.isNumber(left) && Numbers.isNumber(right)) return Numbers.multiply(left, right);
+        return Interpreter.binary(operator, left, right);
+    }
+
+    static Object divide(Object left, Object right, Token operator) {
+        if (left instanceof Double l && right instanceof Double r) return l / r;
+        if (Numbers.isNumber(left) && Numbers.isNumber(right)) return Numbers.divide(left, right);
+        return Interpreter.binary(operator, left, right);
+    }
+
+    static Object negate(Object right, Token operator) {
+        if (right instanceof Double number) return -number;
+        if (right instanceof Long integer) return Numbers.negate((long)integer);
+        return Interpreter.unary(operator, right);
+    }
+
+    // The same operators where the result can only be a number, which give it unboxed, as a
+    // double. The operands still come boxed, since they could be anything.
+
+    static double addNumbers(Object left, Object right, Token operator) {
+        if (left instanceof Double l && right instanceof Double r) return l + r;
+        if (Numbers.isNumber(left) && Numbers.isNumber(right)) {
+            return Numbers.toDouble(left) + Numbers.toDouble(right);
+        }
+        return Numbers.toDouble(Interpreter.binary(operator, left, right));
+    }
+
+    static double subtractNumbers(Object left, Object right, Token operator) {
+        if (left instanceof Double l && right instanceof Double r) return l - r;
+        if (Numbers.isNumber(left) && Numbers.isNumber(right)) {
+            return Numbers.toDouble(left) - Numbers.toDouble(right);
+        }
+        return Numbers.toDouble(Interpreter.binary(operator, left, right));
+    }
+
+    static double multiplyNumbers(Object left, Object right, Token operator) {
+        if (left instanceof Double l && right instanceof Double r) return l * r;
+        if (Numbers.isNumber(left) && Numbers.isNumber(right)) {
+            return Numbers.toDouble(left) * Numbers.toDouble(right);
+        }
+        return Numbers.toDouble(Interpreter.binary(operator, left, right));
+    }
+
+    static double divideNumbers(Object left, Object right, Token operator) {
+        if (left instanceof Double l && right instanceof Double r) return l / r;
+        if (Numbers.isNumber(left) && Numbers.isNumber(right)) {
+            return Numbers.toDouble(left) / Numbers.toDouble(right);
+        }
+        return Numbers.toDouble(Interpreter.binary(operator, left, right));
+    }
+
+    static double negateNumber(Object right, Token operator) {
+        if (right instanceof Double number) return -number;
+        if (right instanceof Long integer) return -(double)integer;
+        return Numbers.toDouble(Interpreter.unary(operator, right));
+    }
+
+    static Object not(Object right) {
+        return !Interpreter.isTruthy(right);
+    }
+
+    static Object equal(Object left, Object right) {
+        return Interpreter.isEqual(left, right);
+    }
+
+    static Object notEqual(Object left, Object right) {
+        return !Interpreter.isEqual(left, right);
+    }
+
+    // Comparisons return a primitive so they can feed a branch directly. Code that needs the value
+    // boxes it through Boolean.valueOf.
+
+    static boolean greater(Object left, Object right, Token operator) {
+        if (left instanceof Double l && right instanceof Double r) return l > r;
+        if (Numbers.isNumber(left) && Numbers.isNumber(right)) return Numbers.greater(left, right);
+        return (Boolean)Interpreter.binary(operator, left, right);
+    }
+
+    static boolean greaterEqual(Object left, Object right, Token operator) {
+        if (left instanceof Double l && right instanceof Double r) return l >= r;
+        if (Numbers.isNumber(left) && Numbers.isNumber(right)) return Numbers.greaterEqual(left, right);
+        return (Boolean)Interpreter.binary(operator, left, right);
+    }
+
+    static boolean less(Object left, Object right, Token operator) {
+        if (left instanceof Double l && right instanceof Double r) return l < r;
+        if (Numbers.isNumber(left) && Numbers.isNumber(right)) return Numbers.less(left, right);
+        return (Boolean)Interpreter.binary(operator, left, right);
+    }
+
+    static boolean lessEqual(Object left, Object right, Token operator) {
+        if (left instanceof Double l && right instanceof Double r) return l <= r;
+        if (Numbers.isNumber(left) && Numbers.isNumber(right)) return Numbers.lessEqual(left, right);
+        return (Boolean)Interpreter.binary(operator, left, right);
+    }
+
+    // Comparisons of operands that can only be numbers
+
+    static boolean greater(double left, double right) {
+        return left > right;
+    }
+
+    static boolean greaterEqual(double left, double right) {
+        return left >= right;
+    }
+
+    static boolean less(double left, double right) {
+        return left < right;
+    }
+
+    static boolean lessEqual(double left, double right) {
+        return left <= right;
+    }
+
+    static LoxInstance instanceForSet(Object object, Token name) {
+        if (object instanceof LoxInstance instance) return instance;
+        throw new RuntimeError(name, "Only instances have fields.");
+    }
+
+    static Object call(Interpreter interpreter, Object callee, Object[] arguments, Token paren) {
+        return interpreter.call(callee, Arrays.asList(arguments), paren);
+    }
+
+    static Object invoke(Interpreter interpreter, Object object, Object callee, Object[] arguments, Token paren) {
+        return interpreter.invoke(object, callee, Arrays.asList(arguments), paren);
+    }
+
+    // Calls of up to three arguments, which go through the site's cache and pass the arguments
+    // directly
+
+    static Object call0(Interpreter interpreter, CallCache cache, Object callee, Token paren) {
+        return cache.check(callee, 0, paren).call0(interpreter, paren);
+    }
+
+    static Object call1(Interpreter interpreter, CallCache cache, Object callee, Object a, Token paren) {
+        return cache.check(callee, 1, paren).call1(interpreter, a, paren);
+    }
+
+    static Object call2(Interpreter interpreter, CallCache cache, Object callee, Object a, Object b, Token paren) {
+        return cache.check(callee, 2, paren).call2(interpreter, a, b, paren);
+    }
+
+    static Object call3(
+            Interpreter interpreter, CallCache cache, Object callee, Object a, Object b, Object c, Token paren) {
+        return cache.check(callee, 3, paren).call3(interpreter, a, b, c, paren);
+    }
+
+    static Object invoke0(Interpreter interpreter, CallCache cache, Object object, Object callee, Token paren) {
+        if (callee instanceof LoxFunction method && method.isUnbound()) {
+            cache.check(method, 0, paren);
+            return method.call0(interpreter, (LoxInstance)object, paren);
+        }
+        return call0(interpreter, cache, callee, paren);
+    }
+
+    static Object invoke1(
+            Interpreter interpreter, CallCache cache, Object object, Object callee, Object a, Token paren) {
+        if (callee instanceof LoxFunction method && method.isUnbound()) {
+            cache.check(method, 1, paren);
+            return method.call1(interpreter, (LoxInstance)object, a, paren);
+        }
+        return call1(interpreter, cache, callee, a, paren);
+    }
+
+    static Object invoke2(
+            Interpreter interpreter, CallCache cache, Object object, Object callee, Object a, Object b, Token paren) {
+        if (callee instanceof LoxFunction method && method.isUnbound()) {
+            cache.check(method, 2, paren);
+            return method.call2(interpreter, (LoxInstance)object, a, b, paren);
+        }
+        return call2(interpreter, cache, callee, a, b, paren);
+    }
+
+    static Object invoke3(Interpreter interpreter, CallCache cache, Object object, Object callee,
+            Object a, Object b, Object c, Token paren) {
+        if (callee instanceof LoxFunction method && method.isUnbound()) {
+            cache.check(method, 3, paren);
+            return method.call3(interpreter, (LoxInstance)object, a, b, c, paren);
+        }
+        return call3(interpreter, cache, callee, a, b, c, paren);
+    }
+
+    static LoxClass createClass(String name, LoxClass superclass, LoxFunction[] methods) {
+        return Interpreter.createClass(name, superclass, Arrays.asList(methods));
+    }
+
+    // Stands in for the declaration of a function compiled ahead of time. It has no body to
+    // interpret, only the compiled code.
+    static Stmt.Function declaration(Token name, Token[] params, boolean isMethod, CompiledFunction compiled) {
+        var declaration = new Stmt.Function(name, Arrays.asList(params), List.of());
+        declaration.isMethod = isMethod;
+        declaration.compiled = compiled;
+        return declaration;
+    }
+
+    static void print(Object value) {
+        System.out.println(Interpreter.stringify(value));
+    }
+
+    // Entry point of the programs compiled ahead of time by LoxCompiler. It reports runtime errors
+    // the way Lox does, without loading Lox, whose static state is the whole toolchain.
+    static void run(Interpreter interpreter, CompiledFunction script) {
+        CallStack.run(() -> {
+            try {
+                script.call(interpreter, null, null, List.of());
+            } catch (RuntimeError error) {
+                System.err.println(error.getMessage() + "\n[line " + error.line + "]");
+                System.exit(70);
+            }
+        });
+    }
+}
@@ -6,20 +6,47 @@ import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class Lox {
     public static void main(String[] args) throws IOException {
-        if (args.length < 1) {
-            System.out.println("Usage: jlox [script]");
+        var arguments = new ArrayList<>(Arrays.asList(args));
+        useVm = arguments.remove("--vm");
+        useClosures = arguments.remove("--closures");
+        if (arguments.remove("--no-optimize")) optimizers.clear();
+        for (var iterator = arguments.iterator(); iterator.hasNext(); ) {
+            var argument = iterator.next();
+            if (argument.startsWith("--jit-threshold=")) {
+                Jit.threshold = Integer.parseInt(argument.substring("--jit-threshold=".length()));
+                iterator.remove();
+            } else if (argument.startsWith("--max-depth=")) {
+                CallStack.maxDepth = Integer.parseInt(argument.substring("--max-depth=".length()));
+                iterator.remove();
+            }
+        }
+
+        if (arguments.size() < 1) {
+            System.out.println(
+                "Usage: jlox [--vm | --closures] [--no-optimize] [--jit-threshold=<calls>]"
+                    + " [--max-depth=<calls>] [script]");
             System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        } else if (arguments.size() == 1) {
+            CallStack.run(() -> runFile(arguments.get(0)));
         } else {
-            runPrompt();
+            CallStack.run(Lox::runPrompt);
         }
     }
 
     private static final Interpreter interpreter = new Interpreter();
+    private static final VM vm = new VM();
+    private static final ClosureCompiler closureCompiler = new ClosureCompiler(interpreter);
+    private static boolean useVm = false;
+    private static boolean useClosures = false;
+    // The passes every program goes through between the resolver and running it, in order
+    private static final List<Optimizer> optimizers =
+        new ArrayList<>(List.of(new Inliner(), new ConstantFolder(), new DataflowOptimizer()));
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
 
@@ -36,6 +63,9 @@ public class Lox {
         var input = new InputStreamReader(System.in);
         var reader = new BufferedReader(input);
 
+        // Later lines can declare the functions and classes that earlier ones call again
+        optimizers.removeIf(optimizer -> optimizer instanceof Inliner);
+
         for(;;) {
             System.out.print("> ");
             var line = reader.readLine();
@@ -58,11 +88,34 @@ public class Lox {
         if (hadError) return;
 
         var resolver = new Resolver(interpreter);
-        resolver.resolve(statements);
+        var slots = resolver.resolveScript(statements);
 
         if (hadError) return;
 
-        interpreter.interpret(statements);
+        var program = optimize(new Optimizer.Program(statements, slots));
+
+        if (useVm) {
+            vm.interpret(program.statements());
+        } else if (useClosures) {
+            runClosures(program.statements(), program.slots());
+        } else {
+            interpreter.interpret(program.statements(), program.slots());
+        }
+    }
+
+    static Optimizer.Program optimize(Optimizer.Program program) {
+        for (var optimizer : optimizers) {
+            program = optimizer.optimize(program);
+        }
+        return program;
+    }
+
+    private static void runClosures(List<Stmt> statements, int slots) {
+        try {
+            closureCompiler.compile(statements).execute(new Environment(slots, null));
+        } catch (RuntimeError error) {
+            runtimeError(error);
+        }
     }
 
     static void error(int line, String message) {
@@ -83,7 +136,7 @@ public class Lox {
     }
 
     static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
+        System.err.println(error.getMessage() + "\n[line " + error.line + "]");
         hadRuntimeError = true;
     }
 }
@@ -1,8 +1,30 @@
 package org.willena.lox;
 
+import java.util.Arrays;
 import java.util.List;
 
 interface LoxCallable {
     int arity();
-    Object call(Interpreter interpreter, List<Object> arguments);
+    // Calls are given the closing parenthesis of the call, for the errors they report
+    Object call(Interpreter interpreter, List<Object> arguments, Token paren);
+
+    // Calls with a fixed number of arguments, so the common small calls don't need a list. Callers
+    // check the arity first, so each one is only used on callables of that arity. A callable that
+    // can take its arguments directly overrides the ones it needs.
+
+    default Object call0(Interpreter interpreter, Token paren) {
+        return call(interpreter, List.of(), paren);
+    }
+
+    default Object call1(Interpreter interpreter, Object a, Token paren) {
+        return call(interpreter, Arrays.asList(a), paren);
+    }
+
+    default Object call2(Interpreter interpreter, Object a, Object b, Token paren) {
+        return call(interpreter, Arrays.asList(a, b), paren);
+    }
+
+    default Object call3(Interpreter interpreter, Object a, Object b, Object c, Token paren) {
+        return call(interpreter, Arrays.asList(a, b, c), paren);
+    }
 }
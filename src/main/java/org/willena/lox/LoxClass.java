@@ -1,29 +1,38 @@
 package org.willena.lox;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 class LoxClass implements LoxCallable {
     final LoxClass superclass;
     final String name;
+    // All the methods of the class, its own and the ones it inherits, so finding one never has to
+    // go up the superclass chain
     private final Map<String, LoxFunction> methods;
+    private final LoxFunction initializer;
+    private final int arity;
+    // The shape of new instances, and how many fields they're likely to get
+    final Shape shape = new Shape(this);
+    int instanceSize = 0;
 
     LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
         this.superclass = superclass;
         this.name = name;
-        this.methods = methods;
-    }
-
-    LoxFunction findMethod(String name) {
-        if (methods.containsKey(name)) {
-            return methods.get(name);
-        }
 
         if (superclass != null) {
-            return superclass.findMethod(name);
+            var inherited = new HashMap<>(superclass.methods);
+            inherited.putAll(methods);
+            methods = inherited;
         }
+        this.methods = methods;
 
-        return null;
+        initializer = methods.get("init");
+        arity = initializer == null ? 0 : initializer.arity();
+    }
+
+    LoxFunction findMethod(String name) {
+        return methods.get(name);
     }
 
     @Override
@@ -33,21 +42,37 @@ class LoxClass implements LoxCallable {
 
     @Override
     public int arity() {
-        var initializer = findMethod("init");
-        if (initializer == null) {
-            return 0;
-        }
-        return initializer.arity();
+        return arity;
     }
 
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
-        LoxInstance instance = new LoxInstance(this);
-        var initializer = findMethod("init");
-        if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
-        }
+    public Object call(Interpreter interpreter, List<Object> arguments, Token paren) {
+        return construct(interpreter, arguments, null, null, null, paren);
+    }
+
+    // The same for each number of arguments the initializer can take directly, so they aren't put
+    // in a list. Without any, the empty list doesn't need allocating.
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a, Token paren) {
+        return construct(interpreter, null, a, null, null, paren);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b, Token paren) {
+        return construct(interpreter, null, a, b, null, paren);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c, Token paren) {
+        return construct(interpreter, null, a, b, c, paren);
+    }
 
+    // Takes the arguments the way LoxFunction.invoke does
+    private LoxInstance construct(
+            Interpreter interpreter, List<Object> arguments, Object a, Object b, Object c, Token paren) {
+        var instance = new LoxInstance(this);
+        if (initializer != null) initializer.invoke(interpreter, instance, arguments, a, b, c, paren);
         return instance;
     }
 }
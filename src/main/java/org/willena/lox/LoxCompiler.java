@@ -0,0 +1,336 @@
+package org.willena.lox;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.regex.Pattern;
+
+// jloxc, the ahead-of-time compiler. Scans, parses and resolves a whole program once, compiles it to
+// JVM classes and packages them in an executable jar together with the runtime classes they use,
+// so running the program doesn't need the front end at all.
+//
+// The top-level code becomes the class LoxProgram, and every function its own class next to it.
+// Each class gets a static create method that rebuilds the constants the code needs, such as
+// tokens for error reporting and the cells of global variables, before instantiating it.
+public class LoxCompiler {
+    private static final String PACKAGE = "org/willena/lox/";
+    private static final String PROGRAM = PACKAGE + "LoxProgram";
+    private static final String CREATE_DESCRIPTOR =
+        "(Lorg/willena/lox/Interpreter;)Lorg/willena/lox/CompiledFunction;";
+
+    // Only used to hand out global variable cells while resolving
+    private final Interpreter interpreter = new Interpreter();
+    private final Map<String, byte[]> classes = new LinkedHashMap<>();
+    private int functionCount = 0;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: jloxc [script] [jar]");
+            System.exit(64);
+        }
+
+        var script = Paths.get(args[0]);
+        var jar = args.length == 2 ? Paths.get(args[1]) : defaultJar(script);
+
+        // The front end and the compiler recurse over the program, so they get the same stack
+        // as jlox gives them
+        CallStack.run(() -> {
+            var compiler = new LoxCompiler();
+            var bytes = Files.readAllBytes(script);
+            if (!compiler.compile(new String(bytes, Charset.defaultCharset()))) System.exit(65);
+            compiler.writeJar(jar);
+        });
+    }
+
+    // foo.lox compiles to foo.jar next to it
+    private static Path defaultJar(Path script) {
+        var name = script.getFileName().toString();
+        if (name.endsWith(".lox")) name = name.substring(0, name.length() - 4);
+        return script.resolveSibling(name + ".jar");
+    }
+
+    private boolean compile(String source) {
+        var scanner = new Scanner(source);
+        var tokens = scanner.scanTokens();
+        var parser = new Parser(tokens);
+        var statements = parser.parse();
+
+        if (Lox.hadError) return false;
+
+        var resolver = new Resolver(interpreter);
+        var slots = resolver.resolveScript(statements);
+
+        if (Lox.hadError) return false;
+
+        statements = Lox.optimize(new Optimizer.Program(statements, slots)).statements();
+
+        try {
+            var compiler = new JvmCompiler(PROGRAM, interpreter);
+            compiler.compileScript(statements);
+            addCreate(compiler, PROGRAM);
+            addMain(compiler.classFile);
+            classes.put(PROGRAM, compiler.classFile.toByteArray());
+        } catch (ClassFile.TooLarge error) {
+            System.err.println("Error: " + error.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    // Compiles a function into its own class and returns the name of the class
+    private String compileFunction(Stmt.Function function) {
+        var name = PROGRAM + "$" + ++functionCount;
+        var compiler = new JvmCompiler(name, interpreter);
+        compiler.compileFunction(function);
+        addCreate(compiler, name);
+        classes.put(name, compiler.classFile.toByteArray());
+        return name;
+    }
+
+    private void addCreate(JvmCompiler compiler, String className) {
+        var code = compiler.classFile.addMethod(
+            ClassFile.ACC_PUBLIC | ClassFile.ACC_STATIC, "create", CREATE_DESCRIPTOR);
+        code.newObject(className);
+        code.op(ClassFile.Code.DUP);
+
+        code.pushInt(compiler.constants.size());
+        code.newArray("java/lang/Object");
+        for (var i = 0; i < compiler.constants.size(); i++) {
+            code.op(ClassFile.Code.DUP);
+            code.pushInt(i);
+            constant(code, compiler.constants.get(i));
+            code.op(ClassFile.Code.AASTORE);
+        }
+
+        code.invokeSpecial(className, "<init>", "([Ljava/lang/Object;)V");
+        code.op(ClassFile.Code.ARETURN);
+        code.end();
+    }
+
+    // Pushes code that recreates one of the constants JvmCompiler collected. The interpreter the
+    // program runs with is in local 0.
+    private void constant(ClassFile.Code code, Object value) {
+        switch (value) {
+            case String string -> code.pushString(string);
+            case Double number -> {
+                code.pushDouble(number);
+                code.invokeStatic("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;");
+            }
+            case Long integer -> {
+                code.pushLong(integer);
+                code.invokeStatic("java/lang/Long", "valueOf", "(J)Ljava/lang/Long;");
+            }
+            case Token token -> {
+                code.newObject(PACKAGE + "Token");
+                code.op(ClassFile.Code.DUP);
+                code.getStatic(PACKAGE + "TokenType", token.type.name(), "Lorg/willena/lox/TokenType;");
+                code.pushString(token.lexeme);
+                code.op(ClassFile.Code.ACONST_NULL);
+                code.pushInt(token.line);
+                code.invokeSpecial(PACKAGE + "Token", "<init>",
+                    "(Lorg/willena/lox/TokenType;Ljava/lang/String;Ljava/lang/Object;I)V");
+            }
+            case GlobalVariable global -> {
+                code.aload(0);
+                code.pushString(global.name);
+                code.invokeVirtual(PACKAGE + "Interpreter", "global",
+                    "(Ljava/lang/String;)Lorg/willena/lox/GlobalVariable;");
+            }
+            // Inline caches start out empty
+            case PropertyCache ignored -> newObject(code, PACKAGE + "PropertyCache");
+            case SuperCache ignored -> newObject(code, PACKAGE + "SuperCache");
+            case CallCache ignored -> newObject(code, PACKAGE + "CallCache");
+            case Stmt.Function function -> declaration(code, function);
+            default -> throw new IllegalArgumentException("Can't compile constant " + value);
+        }
+    }
+
+    private static void newObject(ClassFile.Code code, String className) {
+        code.newObject(className);
+        code.op(ClassFile.Code.DUP);
+        code.invokeSpecial(className, "<init>", "()V");
+    }
+
+    // Nested functions are compiled first, and their declarations replaced by ones that only carry
+    // the compiled code
+    private void declaration(ClassFile.Code code, Stmt.Function function) {
+        var className = compileFunction(function);
+
+        constant(code, function.name);
+        code.pushInt(function.params.size());
+        code.newArray(PACKAGE + "Token");
+        for (var i = 0; i < function.params.size(); i++) {
+            code.op(ClassFile.Code.DUP);
+            code.pushInt(i);
+            constant(code, function.params.get(i));
+            code.op(ClassFile.Code.AASTORE);
+        }
+        code.pushInt(function.isMethod ? 1 : 0);
+        code.aload(0);
+        code.invokeStatic(className, "create", CREATE_DESCRIPTOR);
+        code.invokeStatic(PACKAGE + "JvmRuntime", "declaration",
+            "(Lorg/willena/lox/Token;[Lorg/willena/lox/Token;ZLorg/willena/lox/CompiledFunction;)"
+                + "Lorg/willena/lox/Stmt$Function;");
+    }
+
+    private void addMain(ClassFile classFile) {
+        var code = classFile.addMethod(
+            ClassFile.ACC_PUBLIC | ClassFile.ACC_STATIC, "main", "([Ljava/lang/String;)V");
+        code.newObject(PACKAGE + "Interpreter");
+        code.op(ClassFile.Code.DUP);
+        code.invokeSpecial(PACKAGE + "Interpreter", "<init>", "()V");
+        code.op(ClassFile.Code.DUP);
+        code.invokeStatic(PROGRAM, "create", CREATE_DESCRIPTOR);
+        code.invokeStatic(PACKAGE + "JvmRuntime", "run",
+            "(Lorg/willena/lox/Interpreter;Lorg/willena/lox/CompiledFunction;)V");
+        code.op(ClassFile.Code.RETURN);
+        code.end();
+    }
+
+    private void writeJar(Path path) throws IOException {
+        var manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, PROGRAM.replace('/', '.'));
+
+        try (var jar = new JarOutputStream(Files.newOutputStream(path), manifest)) {
+            for (var runtimeClass : runtimeClasses().entrySet()) {
+                write(jar, runtimeClass.getKey(), runtimeClass.getValue());
+            }
+            for (var compiled : classes.entrySet()) {
+                write(jar, compiled.getKey() + ".class", compiled.getValue());
+            }
+        }
+    }
+
+    private static void write(JarOutputStream jar, String name, byte[] bytes) throws IOException {
+        jar.putNextEntry(new JarEntry(name));
+        jar.write(bytes);
+        jar.closeEntry();
+    }
+
+    // The classes of this package that compiled programs run on: the ones the generated code calls
+    // and creates, and what those load in turn on the way. Functions compiled ahead of time never
+    // go back to the tree-walking interpreter, so its nodes and the rest of the toolchain stay out,
+    // along with Lox, whose static state builds all of it. Only top-level classes are named here.
+    // The nested and synthetic classes javac generates for them, such as switch maps, go along
+    // with them whatever they end up being called.
+    private static final Set<String> RUNTIME_CLASSES = Set.of(
+        "CallCache", "CallStack", "Cell", "CompiledFunction", "Environment", "Expr",
+        "GlobalVariable", "Interpreter", "JvmRuntime", "LoxCallable", "LoxClass", "LoxFunction",
+        "LoxInstance", "Numbers", "PropertyCache", "RuntimeError", "Shape", "Specialization", "Stmt",
+        "SuperCache", "Token", "TokenType");
+
+    // Reads the runtime classes from wherever the compiler itself was loaded from, a directory or
+    // a jar. Fails if the generated code refers to a class of this package that isn't among them,
+    // rather than writing a jar that only fails once it gets there.
+    private Map<String, byte[]> runtimeClasses() throws IOException {
+        Path location;
+        try {
+            location = Paths.get(LoxCompiler.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException error) {
+            throw new IOException(error);
+        }
+
+        var runtime = new TreeMap<String, byte[]>();
+        if (Files.isDirectory(location)) {
+            try (var files = Files.list(location.resolve(PACKAGE))) {
+                for (var file : (Iterable<Path>)files::iterator) {
+                    var name = PACKAGE + file.getFileName();
+                    if (isRuntimeClass(name)) runtime.put(name, Files.readAllBytes(file));
+                }
+            }
+        } else {
+            try (var jar = new JarFile(location.toFile())) {
+                for (var entry : (Iterable<JarEntry>)jar.stream()::iterator) {
+                    if (isRuntimeClass(entry.getName())) {
+                        runtime.put(entry.getName(), jar.getInputStream(entry).readAllBytes());
+                    }
+                }
+            }
+        }
+
+        for (var compiled : classes.values()) {
+            for (var referenced : referencedClasses(compiled)) {
+                if (!referenced.startsWith(PACKAGE) || classes.containsKey(referenced)) continue;
+                if (!runtime.containsKey(referenced + ".class")) {
+                    throw new IOException("Missing runtime class " + referenced);
+                }
+            }
+        }
+        return runtime;
+    }
+
+    private static boolean isRuntimeClass(String entry) {
+        if (!entry.startsWith(PACKAGE) || !entry.endsWith(".class")) return false;
+
+        var name = entry.substring(PACKAGE.length(), entry.length() - ".class".length());
+        if (name.contains("/")) return false;
+        var nested = name.indexOf('$');
+        return RUNTIME_CLASSES.contains(nested < 0 ? name : name.substring(0, nested));
+    }
+
+    private static final Pattern CLASS_IN_DESCRIPTOR = Pattern.compile("L([^;]+);");
+
+    // The classes a class file refers to in its constant pool, by the classes it names and the
+    // types in the descriptors of the members it uses
+    private static Set<String> referencedClasses(byte[] classFile) throws IOException {
+        var in = new DataInputStream(new ByteArrayInputStream(classFile));
+        in.skipNBytes(8);
+        var count = in.readUnsignedShort();
+        var utf8 = new String[count];
+        var names = new ArrayList<Integer>();
+        var descriptors = new ArrayList<Integer>();
+        for (var index = 1; index < count; index++) {
+            var tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1 -> utf8[index] = in.readUTF();
+                case 7 -> names.add(in.readUnsignedShort());
+                case 16 -> descriptors.add(in.readUnsignedShort());
+                case 12 -> {
+                    in.readUnsignedShort();
+                    descriptors.add(in.readUnsignedShort());
+                }
+                case 8, 19, 20 -> in.skipNBytes(2);
+                case 15 -> in.skipNBytes(3);
+                case 3, 4, 9, 10, 11, 17, 18 -> in.skipNBytes(4);
+                // Longs and doubles take two entries
+                case 5, 6 -> {
+                    in.skipNBytes(8);
+                    index++;
+                }
+                default -> throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+
+        var referenced = new HashSet<String>();
+        for (var name : names) {
+            // Array classes are named by their descriptor
+            if (utf8[name].startsWith("[")) {
+                descriptors.add(name);
+            } else {
+                referenced.add(utf8[name]);
+            }
+        }
+        for (var descriptor : descriptors) {
+            var matcher = CLASS_IN_DESCRIPTOR.matcher(utf8[descriptor]);
+            while (matcher.find()) referenced.add(matcher.group(1));
+        }
+        return referenced;
+    }
+}
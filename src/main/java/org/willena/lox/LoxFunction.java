@@ -5,43 +5,180 @@ import java.util.List;
 class LoxFunction implements LoxCallable {
 
     private final Stmt.Function declaration;
-    private final Environment closure;
+    // The cells of the variables it captured from the functions around it, and nothing else of
+    // their frames
+    private final Cell[] upvalues;
 
     private final boolean isInitializer;
 
-    LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+    // The instance a method was bound to. Methods are called with it as 'this', which the resolver
+    // put in the first slot of their scope.
+    private final LoxInstance receiver;
+
+    LoxFunction(Stmt.Function declaration, Cell[] upvalues, boolean isInitializer) {
+        this(declaration, upvalues, isInitializer, null);
+    }
+
+    private LoxFunction(
+            Stmt.Function declaration, Cell[] upvalues, boolean isInitializer, LoxInstance receiver) {
         this.declaration = declaration;
-        this.closure = closure;
+        this.upvalues = upvalues;
         this.isInitializer = isInitializer;
+        this.receiver = receiver;
     }
 
     LoxFunction bind(LoxInstance instance) {
-        var environment = new Environment(closure);
-        environment.define("this", instance);
-        return new LoxFunction(declaration, environment, isInitializer);
+        return new LoxFunction(declaration, upvalues, isInitializer, instance);
+    }
+
+    String name() {
+        return declaration.name.lexeme;
+    }
+
+    // A method as its class holds it, which needs an instance to be called on
+    boolean isUnbound() {
+        return declaration.isMethod && receiver == null;
     }
 
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
-        var environment = new Environment(closure);
-        for (var i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme, arguments.get(i));
-        }
+    public Object call(Interpreter interpreter, List<Object> arguments, Token paren) {
+        return call(interpreter, receiver, arguments, paren);
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter, Token paren) {
+        return call0(interpreter, receiver, paren);
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a, Token paren) {
+        return call1(interpreter, receiver, a, paren);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b, Token paren) {
+        return call2(interpreter, receiver, a, b, paren);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c, Token paren) {
+        return call3(interpreter, receiver, a, b, c, paren);
+    }
+
+    // The calls with a receiver call a method on an instance without binding it first
+
+    Object call(Interpreter interpreter, LoxInstance receiver, List<Object> arguments, Token paren) {
+        return invoke(interpreter, receiver, arguments, null, null, null, paren);
+    }
+
+    Object call0(Interpreter interpreter, LoxInstance receiver, Token paren) {
+        return invoke(interpreter, receiver, null, null, null, null, paren);
+    }
 
+    Object call1(Interpreter interpreter, LoxInstance receiver, Object a, Token paren) {
+        return invoke(interpreter, receiver, null, a, null, null, paren);
+    }
+
+    Object call2(Interpreter interpreter, LoxInstance receiver, Object a, Object b, Token paren) {
+        return invoke(interpreter, receiver, null, a, b, null, paren);
+    }
+
+    Object call3(Interpreter interpreter, LoxInstance receiver, Object a, Object b, Object c, Token paren) {
+        return invoke(interpreter, receiver, null, a, b, c, paren);
+    }
+
+    // Every call of a Lox function ends up here. The arguments come in the list, or without one
+    // as the first of a, b and c, as many as the function takes, so small calls don't allocate.
+    //
+    // It keeps count of how deeply calls nest, and reports a stack overflow at the call that would
+    // go too deep, like the VM does. Calls can also run out of Java stack before they get that
+    // deep, as a call takes more of it the more blocks its body nests, so they turn a
+    // StackOverflowError into the same error. Catching it in the innermost call may overflow
+    // again, which the call around it catches in turn.
+    //
+    // Hot functions are compiled to JVM bytecode in the background, and run as such from the first
+    // call after it's ready.
+    Object invoke(Interpreter interpreter, LoxInstance receiver, List<Object> arguments,
+            Object a, Object b, Object c, Token paren) {
+        if (interpreter.depth == CallStack.maxDepth) {
+            throw new RuntimeError(paren, "Stack overflow.");
+        }
+        interpreter.depth++;
         try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) {
-            // Only value-less returns in initializers reach this. Returns with values in initializers are caught by the
-            // resolver.
-            if (isInitializer) return closure.getAt(0, "this");
+            return callBody(interpreter, receiver, arguments, a, b, c);
+        } catch (StackOverflowError error) {
+            throw new RuntimeError(paren, "Stack overflow.");
+        } finally {
+            interpreter.depth--;
+        }
+    }
+
+    private Object callBody(
+            Interpreter interpreter, LoxInstance receiver, List<Object> arguments, Object a, Object b, Object c) {
+        var compiled = declaration.compiled;
+        if (compiled != null) {
+            return result(callCompiled(compiled, interpreter, receiver, arguments, a, b, c), receiver);
+        }
 
-            return returnValue.value;
+        var environment = frame(interpreter, receiver);
+        var first = declaration.isMethod ? 1 : 0;
+        if (arguments != null) {
+            for (var i = 0; i < arguments.size(); i++) {
+                environment.slots[first + i] = arguments.get(i);
+            }
+        } else {
+            var arity = arity();
+            if (arity > 0) environment.slots[first] = a;
+            if (arity > 1) environment.slots[first + 1] = b;
+            if (arity > 2) environment.slots[first + 2] = c;
+        }
+        return run(interpreter, environment, receiver);
+    }
+
+    private Object callCompiled(CompiledFunction compiled, Interpreter interpreter, LoxInstance receiver,
+            List<Object> arguments, Object a, Object b, Object c) {
+        if (arguments != null) return compiled.call(interpreter, upvalues, receiver, arguments);
+
+        return switch (arity()) {
+            case 0 -> compiled.call0(interpreter, upvalues, receiver);
+            case 1 -> compiled.call1(interpreter, upvalues, receiver, a);
+            case 2 -> compiled.call2(interpreter, upvalues, receiver, a, b);
+            default -> compiled.call3(interpreter, upvalues, receiver, a, b, c);
+        };
+    }
+
+    private Object result(Object result, LoxInstance receiver) {
+        return isInitializer ? receiver : result;
+    }
+
+    // The frame the body runs in, with 'this' in the first slot for methods. The caller puts the
+    // arguments in the slots after it.
+    private Environment frame(Interpreter interpreter, LoxInstance receiver) {
+        Jit.countCall(declaration);
+
+        var environment = interpreter.frame(declaration.slots, upvalues);
+        if (declaration.isMethod) environment.slots[0] = receiver;
+        return environment;
+    }
+
+    private Object run(Interpreter interpreter, Environment environment, LoxInstance receiver) {
+        // Parameters that inner functions capture move into cells before the body runs
+        for (var slot : declaration.capturedParameters) {
+            environment.slots[slot] = new Cell(environment.slots[slot]);
+        }
+
+        Object result;
+        try {
+            result = interpreter.executeBlock(declaration.body, environment);
+        } finally {
+            environment.clear(declaration.slots);
         }
 
-        // Make init methods always return 'this' when called
-        if (isInitializer) return closure.getAt(0, "this");
+        // Make init methods always return 'this' when called. Returns with values in initializers
+        // are caught by the resolver.
+        if (isInitializer) return receiver;
 
-        return null;
+        return result == Interpreter.COMPLETED ? null : result;
     }
 
     @Override
@@ -1,33 +1,59 @@
 package org.willena.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
+// An instance is its shape and the values of its fields, in the slots the shape assigns them
 class LoxInstance {
-    private LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    // The shape also knows the class, which saves a field in every instance
+    Shape shape;
+    Object[] values;
 
     LoxInstance(LoxClass klass) {
-        this.klass = klass;
+        this.shape = klass.shape;
+        // Sized for the fields earlier instances of the class ended up with, which the new one
+        // most likely gets too
+        this.values = new Object[klass.instanceSize];
     }
 
     Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
-        }
+        var slot = shape.slotOf(name.lexeme);
+        if (slot != -1) return values[slot];
+
+        return get(name, -1, shape.klass.findMethod(name.lexeme));
+    }
+
+    // Like get(Token), with the field's slot and the method of the name already looked up, by a
+    // PropertyCache
+    Object get(Token name, int slot, LoxFunction method) {
+        if (slot != -1) return values[slot];
 
-        var method = klass.findMethod(name.lexeme);
         if (method != null) return method.bind(this);
 
         throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
     }
 
     void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        var slot = shape.slotOf(name.lexeme);
+        if (slot == -1) {
+            changeShape(shape.withField(name.lexeme));
+            slot = shape.size - 1;
+        }
+
+        values[slot] = value;
+    }
+
+    // Moves the instance to a shape with one more field than its current one
+    void changeShape(Shape shape) {
+        if (values.length < shape.size) {
+            values = Arrays.copyOf(values, shape.size);
+            if (shape.klass.instanceSize < shape.size) shape.klass.instanceSize = shape.size;
+        }
+
+        this.shape = shape;
     }
 
     @Override
     public String toString() {
-        return klass.name + " instance";
+        return shape.klass.name + " instance";
     }
 }
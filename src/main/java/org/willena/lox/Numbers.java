@@ -0,0 +1,139 @@
+package org.willena.lox;
+
+// Lox numbers are doubles, but integers are kept as a Long for as long as they're exactly what the
+// double would be: between -2^53 and 2^53, and never -0, which only a Double can be. Arithmetic on
+// two of them stays on longs, and gives a Double once its result leaves that range, has a fraction
+// or is -0. Both kinds are the same number to Lox: they compare, print and are equal exactly like
+// the double would.
+final class Numbers {
+    private Numbers() {}
+
+    private static final long MAX_INTEGER = 1L << 53;
+
+    static boolean isNumber(Object value) {
+        return value instanceof Long || value instanceof Double;
+    }
+
+    static double toDouble(Object number) {
+        return number instanceof Double value ? value : (double)(Long)number;
+    }
+
+    // Number literals without a fraction are integers, unless they have too many digits to be sure
+    // they're below 2^53, which takes 16
+    static Object parse(String text) {
+        if (text.indexOf('.') == -1 && text.length() <= 15) return Long.parseLong(text);
+        return Double.parseDouble(text);
+    }
+
+    private static boolean isInteger(long value) {
+        return value >= -MAX_INTEGER && value <= MAX_INTEGER;
+    }
+
+    static Object add(long left, long right) {
+        var result = left + right;
+        if (isInteger(result)) return result;
+        return (double)left + (double)right;
+    }
+
+    static Object subtract(long left, long right) {
+        var result = left - right;
+        if (isInteger(result)) return result;
+        return (double)left - (double)right;
+    }
+
+    static Object multiply(long left, long right) {
+        // Below 2^53 the double product is exact, and so is the long one
+        var product = (double)left * (double)right;
+        if (Math.abs(product) < MAX_INTEGER) {
+            var result = left * right;
+            // 0 times a negative number is -0
+            if (result != 0 || (left >= 0 && right >= 0)) return result;
+        }
+        return product;
+    }
+
+    static Object divide(long left, long right) {
+        // 0 divided by a negative number is -0
+        if (right != 0 && left % right == 0 && (left != 0 || right > 0)) return left / right;
+        return (double)left / (double)right;
+    }
+
+    static Object negate(long value) {
+        if (value == 0) return -0.0;
+        return -value;
+    }
+
+    // The operators on any two numbers, which the callers have checked they are
+
+    static Object add(Object left, Object right) {
+        if (left instanceof Long l && right instanceof Long r) return add((long)l, (long)r);
+        return toDouble(left) + toDouble(right);
+    }
+
+    static Object subtract(Object left, Object right) {
+        if (left instanceof Long l && right instanceof Long r) return subtract((long)l, (long)r);
+        return toDouble(left) - toDouble(right);
+    }
+
+    static Object multiply(Object left, Object right) {
+        if (left instanceof Long l && right instanceof Long r) return multiply((long)l, (long)r);
+        return toDouble(left) * toDouble(right);
+    }
+
+    static Object divide(Object left, Object right) {
+        if (left instanceof Long l && right instanceof Long r) return divide((long)l, (long)r);
+        return toDouble(left) / toDouble(right);
+    }
+
+    static Object negate(Object value) {
+        if (value instanceof Long integer) return negate((long)integer);
+        return -(Double)value;
+    }
+
+    static boolean greater(Object left, Object right) {
+        if (left instanceof Long l && right instanceof Long r) return l > r;
+        return toDouble(left) > toDouble(right);
+    }
+
+    static boolean greaterEqual(Object left, Object right) {
+        if (left instanceof Long l && right instanceof Long r) return l >= r;
+        return toDouble(left) >= toDouble(right);
+    }
+
+    static boolean less(Object left, Object right) {
+        if (left instanceof Long l && right instanceof Long r) return l < r;
+        return toDouble(left) < toDouble(right);
+    }
+
+    static boolean lessEqual(Object left, Object right) {
+        if (left instanceof Long l && right instanceof Long r) return l <= r;
+        return toDouble(left) <= toDouble(right);
+    }
+
+    // Equal the way Double.equals has it, so NaN is equal to itself and 0 isn't equal to -0
+    static boolean isEqual(Object left, Object right) {
+        if (left instanceof Long l && right instanceof Long r) return l.longValue() == r.longValue();
+        return Double.doubleToLongBits(toDouble(left)) == Double.doubleToLongBits(toDouble(right));
+    }
+
+    // What the compilers can tell about numbers from the code alone. An expression that can only
+    // give a number, when it gives anything at all, is compiled to give it as a double: arithmetic
+    // nested in arithmetic, or in a comparison, never boxes its intermediate results, and the value
+    // is boxed only once it's stored or passed somewhere.
+
+    // '-', '*', '/' and negation give a number or fail, and so does '+' once one of its operands is
+    // a number
+    static boolean isNumber(Expr expr) {
+        return switch (expr) {
+            case Expr.Literal literal -> isNumber(literal.value);
+            case Expr.Grouping grouping -> isNumber(grouping.expression);
+            case Expr.Unary unary -> unary.operator.type == TokenType.MINUS;
+            case Expr.Binary binary -> switch (binary.operator.type) {
+                case MINUS, STAR, SLASH -> true;
+                case PLUS -> isNumber(binary.left) || isNumber(binary.right);
+                default -> false;
+            };
+            default -> false;
+        };
+    }
+}
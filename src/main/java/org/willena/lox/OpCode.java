@@ -0,0 +1,51 @@
+package org.willena.lox;
+
+// Instruction set of the bytecode VM. Operands follow the opcode in the chunk; unless noted
+// otherwise they are unsigned 16-bit values, high byte first.
+final class OpCode {
+    private OpCode() {}
+
+    static final byte CONSTANT = 0;         // constant index
+    static final byte NIL = 1;
+    static final byte TRUE = 2;
+    static final byte FALSE = 3;
+    static final byte POP = 4;
+    static final byte GET_LOCAL = 5;        // frame slot
+    static final byte SET_LOCAL = 6;        // frame slot
+    static final byte GET_GLOBAL = 7;       // global slot
+    static final byte DEFINE_GLOBAL = 8;    // global slot
+    static final byte SET_GLOBAL = 9;       // global slot
+    static final byte GET_UPVALUE = 10;     // upvalue index
+    static final byte SET_UPVALUE = 11;     // upvalue index
+    static final byte GET_PROPERTY = 12;    // name constant
+    static final byte SET_PROPERTY = 13;    // name constant
+    static final byte CHECK_INSTANCE = 14;  // name constant, used for error reporting only
+    static final byte GET_SUPER = 15;       // name constant
+    static final byte EQUAL = 16;
+    static final byte NOT_EQUAL = 17;
+    static final byte GREATER = 18;
+    static final byte GREATER_EQUAL = 19;
+    static final byte LESS = 20;
+    static final byte LESS_EQUAL = 21;
+    static final byte ADD = 22;
+    static final byte SUBTRACT = 23;
+    static final byte MULTIPLY = 24;
+    static final byte DIVIDE = 25;
+    static final byte NOT = 26;
+    static final byte NEGATE = 27;
+    static final byte PRINT = 28;
+    static final byte JUMP = 29;            // forward offset
+    static final byte JUMP_IF_FALSE = 30;   // forward offset, condition is left on the stack
+    static final byte JUMP_IF_TRUE = 31;    // forward offset, condition is left on the stack
+    static final byte LOOP = 32;            // backward offset
+    static final byte CALL = 33;            // argument count, one byte
+    static final byte CLOSURE = 34;         // function constant, then an (is local, index) pair
+                                            // per upvalue: one byte and a 16-bit index
+    static final byte CLOSE_UPVALUE = 35;
+    static final byte RETURN = 36;
+    static final byte CLASS = 37;           // name constant
+    static final byte INHERIT = 38;
+    static final byte METHOD = 39;          // name constant
+    static final byte TAIL_CALL = 40;       // argument count, one byte. Calls and returns what the
+                                            // callee returns, in the frame of the caller
+}
@@ -0,0 +1,17 @@
+package org.willena.lox;
+
+import java.util.List;
+
+// A pass over a resolved program that rewrites it into one that runs faster and does the same,
+// runtime errors and their lines included. Passes run after the resolver, so they only see programs
+// without static errors, and before any backend, so every backend runs what they give. They build
+// new nodes rather than changing the ones they're given, except for the bodies of functions, which
+// are rewritten in place so the resolver's layout of their frames stays attached to them. A pass
+// that needs more slots in a frame adds them to the function, or to the program for its top-level
+// code.
+interface Optimizer {
+    Program optimize(Program program);
+
+    // A resolved program, and how many slots the frame of its top-level code needs
+    record Program(List<Stmt> statements, int slots) {}
+}
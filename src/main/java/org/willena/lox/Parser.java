@@ -387,6 +387,12 @@ class Parser {
 
         var paren = consume(RIGHT_PAREN, "Expect ')' after arguments.");
 
+        // Calling a property, or a superclass method, right away is a method call, which doesn't
+        // need the bound method
+        if (callee instanceof Expr.Get || callee instanceof Expr.Super) {
+            return new Expr.Invoke(callee, paren, arguments);
+        }
+
         return new Expr.Call(callee, paren, arguments);
     }
 
@@ -0,0 +1,105 @@
+package org.willena.lox;
+
+// The inline cache of one property access site, an Expr.Get or an Expr.Set. It remembers what the
+// property name resolved to for each shape of receiver the site has seen, so a repeated access
+// only compares shapes and then goes straight to the slot, instead of looking the name up in the
+// shape and walking up the superclass chain. Shapes, and the methods of their class, never change
+// once made, so an entry never goes stale.
+//
+// The cache starts out empty, is monomorphic after the first access, and takes in up to
+// MAX_ENTRIES shapes. A site that sees more than that is megamorphic and goes back to plain
+// lookups for good.
+final class PropertyCache {
+    private static final int MAX_ENTRIES = 4;
+
+    private final Shape[] shapes = new Shape[MAX_ENTRIES];
+    // The slot of the field, or -1 if the shape doesn't have it
+    private final int[] slots = new int[MAX_ENTRIES];
+    // For gets of a property that isn't a field, the method it names, if any
+    private final LoxFunction[] methods = new LoxFunction[MAX_ENTRIES];
+    // For sets of a field the shape doesn't have yet, the shape the instance moves to
+    private final Shape[] transitions = new Shape[MAX_ENTRIES];
+    private int size = 0;
+    private boolean megamorphic = false;
+
+    Object get(Object object, Token name) {
+        if (!(object instanceof LoxInstance instance)) {
+            throw new RuntimeError(name, "Only instances have properties.");
+        }
+
+        var entry = lookUp(instance.shape, name);
+        if (entry == -1) return instance.get(name);
+
+        return instance.get(name, slots[entry], methods[entry]);
+    }
+
+    // Like get, except that a method is returned as the class holds it, unbound, for the caller
+    // to call with the object as its receiver
+    Object getMethod(Object object, Token name) {
+        if (object instanceof LoxInstance instance) {
+            var entry = lookUp(instance.shape, name);
+            if (entry != -1) {
+                if (slots[entry] == -1 && methods[entry] != null) return methods[entry];
+            } else if (instance.shape.slotOf(name.lexeme) == -1) {
+                var method = instance.shape.klass.findMethod(name.lexeme);
+                if (method != null) return method;
+            }
+        }
+
+        return get(object, name);
+    }
+
+    // The entry of a get site for the shape, added if the shape is new, or -1 if the site is
+    // megamorphic
+    private int lookUp(Shape shape, Token name) {
+        for (var i = 0; i < size; i++) {
+            if (shapes[i] == shape) return i;
+        }
+
+        if (!add(shape)) return -1;
+
+        var slot = shape.slotOf(name.lexeme);
+        slots[size] = slot;
+        if (slot == -1) methods[size] = shape.klass.findMethod(name.lexeme);
+        return size++;
+    }
+
+    Object set(LoxInstance instance, Token name, Object value) {
+        var shape = instance.shape;
+        for (var i = 0; i < size; i++) {
+            if (shapes[i] == shape) {
+                var transition = transitions[i];
+                if (transition != null) instance.changeShape(transition);
+                instance.values[slots[i]] = value;
+                return value;
+            }
+        }
+
+        if (!add(shape)) {
+            instance.set(name, value);
+            return value;
+        }
+
+        var slot = shape.slotOf(name.lexeme);
+        if (slot == -1) {
+            transitions[size] = shape.withField(name.lexeme);
+            slot = shape.size;
+        }
+        slots[size++] = slot;
+
+        instance.set(name, value);
+        return value;
+    }
+
+    // Starts an entry for the shape, unless the site has turned megamorphic
+    private boolean add(Shape shape) {
+        if (megamorphic) return false;
+        if (size == MAX_ENTRIES) {
+            megamorphic = true;
+            return false;
+        }
+
+        shapes[size] = shape;
+        return true;
+    }
+}
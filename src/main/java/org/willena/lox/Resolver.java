@@ -1,14 +1,22 @@
 package org.willena.lox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 
+// Besides reporting static errors, works out where every variable lives. Each function call gets
+// one flat frame with a slot for each of the function's locals, however deeply nested their
+// blocks are, and blocks that can't be live at the same time share slots. A local used by a
+// function declared inside its scope is captured: it's kept in a Cell, which the inner function
+// gets a reference to when it's created, rather than a reference to the whole frame. Locals that
+// are never captured stay plain slots.
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private final Stack<Map<String, Local>> scopes = new Stack<>();
     private FunctionType currentFunction = FunctionType.NONE;
+    private Frame currentFrame = null;
 
     Resolver(Interpreter interpreter) {
         this.interpreter = interpreter;
@@ -29,6 +37,42 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     private ClassType currentClass = ClassType.NONE;
 
+    // A variable declared in a local scope, in a slot of the frame of the function declaring it
+    private static class Local {
+        final Frame frame;
+        final int slot;
+        // The declaration that gets told whether the variable is captured, or null for 'this',
+        // parameters and 'super', which the function or class they belong to takes care of
+        final Stmt declaration;
+        boolean defined = false;
+        boolean captured = false;
+        // The expressions reading or assigning the variable in its own function, which have to go
+        // through its cell if it turns out to be captured
+        final List<Expr> references = new ArrayList<>();
+
+        Local(Frame frame, int slot, Stmt declaration) {
+            this.frame = frame;
+            this.slot = slot;
+            this.declaration = declaration;
+        }
+    }
+
+    // The frame of the function being resolved, or of the top-level code
+    private static class Frame {
+        final Frame enclosing;
+        // The slot of the next local, and the most slots the function needs at any one time
+        int next = 0;
+        int size = 0;
+        // The variables of enclosing functions this one captures, as Environment.capture expects
+        // them, and the index each one has among them
+        final List<Integer> captures = new ArrayList<>();
+        final Map<Local, Integer> upvalues = new HashMap<>();
+
+        Frame(Frame enclosing) {
+            this.enclosing = enclosing;
+        }
+    }
+
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
         beginScope();
@@ -42,7 +86,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         var enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
 
-        declare(stmt.name);
+        declare(stmt.name, stmt);
         define(stmt.name);
 
         if (stmt.superclass != null && stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
@@ -54,14 +98,14 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             resolve(stmt.superclass);
         }
 
+        // The superclass is kept for 'super' in a local of its own around the methods, which
+        // capture it
+        Local superclass = null;
         if (stmt.superclass != null) {
             beginScope();
-            scopes.peek().put("super", true);
+            superclass = declareSynthetic("super");
         }
 
-        beginScope();
-        scopes.peek().put("this", true);
-
         for (var method : stmt.methods) {
             var declaration = FunctionType.METHOD;
             if (method.name.lexeme.equals("init")) {
@@ -70,9 +114,10 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             resolveFunction(method, declaration);
         }
 
-        endScope();
-
-        if (stmt.superclass != null) endScope();
+        if (superclass != null) {
+            if (superclass.captured) stmt.superclassSlot = superclass.slot;
+            endScope();
+        }
 
         currentClass = enclosingClass;
 
@@ -87,7 +132,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
+        declare(stmt.name, stmt);
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
@@ -104,18 +149,19 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
+        if (!scopes.isEmpty() && scopes.peek().containsKey(expr.name.lexeme)
+                && !scopes.peek().get(expr.name.lexeme).defined) {
             Lox.error(expr.name, "Can't read local variable in its own initializer.");
         }
 
-        resolveLocal(expr, expr.name);
+        resolveLocal(expr, expr.name.lexeme);
         return null;
     }
 
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        resolveLocal(expr, expr.name.lexeme);
         return null;
     }
 
@@ -142,6 +188,16 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitInvokeExpr(Expr.Invoke expr) {
+        resolve(expr.callee);
+
+        for (var argument : expr.arguments) {
+            resolve(argument);
+        }
+        return null;
+    }
+
     @Override
     public Void visitGroupingExpr(Expr.Grouping expr) {
         resolve(expr.expression);
@@ -174,7 +230,12 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         } else if (currentClass != ClassType.SUBCLASS) {
             Lox.error(expr.keyword, "Can't use 'super' in a class with no superclass.");
         }
-        resolveLocal(expr, expr.keyword);
+
+        // The superclass is always in the frame around the class, so it's always captured. The
+        // instance the method is called on is found like any 'this'.
+        resolveLocal(expr, "super");
+        expr.receiver = new Expr.This(expr.keyword);
+        resolveLocal(expr.receiver, "this");
         return null;
     }
 
@@ -184,7 +245,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             Lox.error(expr.keyword, "Can't use 'this' outside of a class.");
             return null;
         }
-        resolveLocal(expr, expr.keyword);
+        resolveLocal(expr, "this");
         return null;
     }
 
@@ -196,7 +257,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
+        declare(stmt.name, stmt);
         define(stmt.name);
         resolveFunction(stmt, FunctionType.FUNCTION);
         return null;
@@ -230,6 +291,14 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    // Resolves a whole program and returns how many slots the frame of its top-level code needs,
+    // for the locals of its blocks. Variables declared outside of any block are globals.
+    int resolveScript(List<Stmt> statements) {
+        currentFrame = new Frame(null);
+        resolve(statements);
+        return currentFrame.size;
+    }
+
     void resolve(List<Stmt> statements) {
         for (var statement : statements) {
             resolve(statement);
@@ -245,50 +314,150 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
     private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+        scopes.push(new HashMap<String, Local>());
     }
 
+    // Closes the innermost scope, whose slots the next scope can reuse. Now that everything that
+    // could capture its variables has been resolved, the ones that were captured are told so.
     private void endScope() {
-        scopes.pop();
+        var scope = scopes.pop();
+        currentFrame.next -= scope.size();
+
+        for (var local : scope.values()) {
+            if (!local.captured) continue;
+
+            for (var reference : local.references) {
+                interpreter.box(reference);
+            }
+            switch (local.declaration) {
+                case Stmt.Var var -> var.captured = true;
+                case Stmt.Function function -> function.captured = true;
+                case Stmt.Class klass -> klass.captured = true;
+                case null, default -> {}
+            }
+        }
     }
 
-    private void declare(Token name) {
+    private void declare(Token name, Stmt declaration) {
         if (scopes.isEmpty()) return;
 
         var scope = scopes.peek();
         if(scope.containsKey(name.lexeme)) {
             Lox.error(name, "Already a variable with this name in this scope.");
         }
-        scope.put(name.lexeme, false);
+        var local = addLocal(declaration);
+        scope.put(name.lexeme, local);
+        setSlot(declaration, local.slot);
+    }
+
+    private static void setSlot(Stmt declaration, int slot) {
+        switch (declaration) {
+            case Stmt.Var var -> var.slot = slot;
+            case Stmt.Function function -> function.slot = slot;
+            case Stmt.Class klass -> klass.slot = slot;
+            case null, default -> {}
+        }
+    }
+
+    private Local addLocal(Stmt declaration) {
+        var frame = currentFrame;
+        var local = new Local(frame, frame.next++, declaration);
+        if (frame.next > frame.size) frame.size = frame.next;
+        return local;
     }
 
     private void define(Token name) {
         if (scopes.isEmpty()) return;
 
-        scopes.peek().put(name.lexeme, true);
+        scopes.peek().get(name.lexeme).defined = true;
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    private Local declareSynthetic(String name) {
+        var local = addLocal(null);
+        local.defined = true;
+        scopes.peek().put(name, local);
+        return local;
+    }
+
+    private void resolveLocal(Expr expr, String name) {
         for (var i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
+            var local = scopes.get(i).get(name);
+            if (local == null) continue;
+
+            // The optimizers follow the values of local variables from their declarations
+            if (local.declaration instanceof Stmt.Var var) {
+                switch (expr) {
+                    case Expr.Variable variable -> variable.declaration = var;
+                    case Expr.Assign assign -> {
+                        assign.declaration = var;
+                        var.assigned = true;
+                    }
+                    default -> {}
+                }
+            }
+
+            if (local.frame == currentFrame) {
+                local.references.add(expr);
+                interpreter.resolve(expr, local.slot);
+            } else {
+                interpreter.resolveUpvalue(expr, upvalue(currentFrame, local));
             }
+            return;
         }
+
+        // Not found in any local scope, so assume it's global
+        interpreter.resolveGlobal(expr, name);
+    }
+
+    // The index of the cell of a local from an enclosing function among the ones the given function
+    // captures. Functions in between capture it too, to pass it on.
+    private static int upvalue(Frame frame, Local local) {
+        var existing = frame.upvalues.get(local);
+        if (existing != null) return existing;
+
+        int capture;
+        if (frame.enclosing == local.frame) {
+            local.captured = true;
+            capture = local.slot;
+        } else {
+            capture = -1 - upvalue(frame.enclosing, local);
+        }
+
+        var index = frame.captures.size();
+        frame.captures.add(capture);
+        frame.upvalues.put(local, index);
+        return index;
     }
 
     private void resolveFunction(Stmt.Function function, FunctionType type) {
         var enclosingFunction = currentFunction;
         currentFunction = type;
+        currentFrame = new Frame(currentFrame);
 
         beginScope();
+        // Methods get the instance they're called on as 'this', in the first slot of their own
+        // frame, so calling one doesn't need an environment just for 'this'
+        var parameters = new ArrayList<Local>();
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+            function.isMethod = true;
+            parameters.add(declareSynthetic("this"));
+        }
         for (var param : function.params) {
-            declare(param);
+            declare(param, null);
             define(param);
+            parameters.add(scopes.peek().get(param.lexeme));
         }
         resolve(function.body);
+
+        // The parameters come in as plain values, and those that are captured are moved into
+        // cells when the function is called
+        function.capturedParameters =
+            parameters.stream().filter(local -> local.captured).mapToInt(local -> local.slot).toArray();
         endScope();
 
+        function.slots = currentFrame.size;
+        function.captures = currentFrame.captures.stream().mapToInt(Integer::intValue).toArray();
+        currentFrame = currentFrame.enclosing;
         currentFunction = enclosingFunction;
     }
 }
@@ -0,0 +1,182 @@
+package org.willena.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+// Rewrites statements and the expressions in them, keeping the nodes that don't change, for the
+// optimizer passes that only have something to do here and there. Each pass hooks in where it does.
+// Function bodies are rewritten in place, as Optimizer asks.
+class Rewrite {
+    // The function whose frame the code being rewritten runs in, or null for top-level code
+    Stmt.Function function;
+
+    List<Stmt> statements(List<Stmt> statements) {
+        var results = new ArrayList<Stmt>(statements.size());
+        var changed = false;
+        for (var statement : statements) {
+            var result = statement(statement);
+            if (result != null) results.add(result);
+            changed |= result != statement;
+        }
+        return changed ? results : statements;
+    }
+
+    // Gives null for a statement that's been removed
+    Stmt statement(Stmt stmt) {
+        return switch (stmt) {
+            case Stmt.Block block -> {
+                var statements = statements(block.statements);
+                yield statements == block.statements ? block : new Stmt.Block(statements);
+            }
+            case Stmt.Class klass -> {
+                for (var method : klass.methods) {
+                    body(method);
+                }
+                yield klass;
+            }
+            case Stmt.Expression expression -> {
+                var value = expression(expression.expression);
+                yield value == expression.expression ? expression : new Stmt.Expression(value);
+            }
+            case Stmt.Function declaration -> {
+                body(declaration);
+                yield declaration;
+            }
+            case Stmt.If ifStmt -> {
+                var condition = expression(ifStmt.condition);
+                var thenBranch = nested(ifStmt.thenBranch);
+                var elseBranch = ifStmt.elseBranch != null ? statement(ifStmt.elseBranch) : null;
+                if (condition == ifStmt.condition && thenBranch == ifStmt.thenBranch
+                        && elseBranch == ifStmt.elseBranch) {
+                    yield ifStmt;
+                }
+                yield new Stmt.If(condition, thenBranch, elseBranch);
+            }
+            case Stmt.Print print -> {
+                var value = expression(print.expression);
+                yield value == print.expression ? print : new Stmt.Print(value);
+            }
+            case Stmt.Return returnStmt -> {
+                if (returnStmt.value == null) yield returnStmt;
+                var value = expression(returnStmt.value);
+                yield value == returnStmt.value ? returnStmt : new Stmt.Return(returnStmt.keyword, value);
+            }
+            case Stmt.Var var -> {
+                if (var.initializer == null) yield var;
+                var initializer = expression(var.initializer);
+                yield initializer == var.initializer ? var : declaration(var, initializer);
+            }
+            case Stmt.While loop -> {
+                var condition = expression(loop.condition);
+                var body = nested(loop.body);
+                if (condition == loop.condition && body == loop.body) yield loop;
+                yield new Stmt.While(condition, body);
+            }
+        };
+    }
+
+    // A statement that has to stay one, as the body of an 'if' or a 'while' does
+    Stmt nested(Stmt stmt) {
+        var result = statement(stmt);
+        return result != null ? result : new Stmt.Block(List.of());
+    }
+
+    void body(Stmt.Function declaration) {
+        var enclosing = function;
+        function = declaration;
+        var body = statements(declaration.body);
+        if (body != declaration.body) {
+            declaration.body.clear();
+            declaration.body.addAll(body);
+        }
+        function = enclosing;
+    }
+
+    Expr expression(Expr expr) {
+        return withOperands(expr, this::expression);
+    }
+
+    static Stmt.Var declaration(Stmt.Var var, Expr initializer) {
+        var declaration = new Stmt.Var(var.name, initializer);
+        declaration.slot = var.slot;
+        declaration.captured = var.captured;
+        declaration.assigned = var.assigned;
+        return declaration;
+    }
+
+    static Expr.Assign assignment(Expr.Assign assign, Expr value) {
+        var assignment = new Expr.Assign(assign.name, value);
+        assignment.slot = assign.slot;
+        assignment.upvalue = assign.upvalue;
+        assignment.boxed = assign.boxed;
+        assignment.global = assign.global;
+        assignment.declaration = assign.declaration;
+        return assignment;
+    }
+
+    // The expression with the operation applied to its operands, in the order they're evaluated in,
+    // or the same node if none of them changed
+    static Expr withOperands(Expr expr, UnaryOperator<Expr> operation) {
+        return switch (expr) {
+            case Expr.Assign assign -> {
+                var value = operation.apply(assign.value);
+                yield value == assign.value ? assign : assignment(assign, value);
+            }
+            case Expr.Binary binary -> {
+                var left = operation.apply(binary.left);
+                var right = operation.apply(binary.right);
+                if (left == binary.left && right == binary.right) yield binary;
+                yield new Expr.Binary(left, binary.operator, right);
+            }
+            case Expr.Call call -> {
+                var callee = operation.apply(call.callee);
+                var arguments = withAll(call.arguments, operation);
+                if (callee == call.callee && arguments == call.arguments) yield call;
+                yield new Expr.Call(callee, call.paren, arguments);
+            }
+            case Expr.Get get -> {
+                var object = operation.apply(get.object);
+                yield object == get.object ? get : new Expr.Get(object, get.name);
+            }
+            case Expr.Grouping grouping -> {
+                var expression = operation.apply(grouping.expression);
+                yield expression == grouping.expression ? grouping : new Expr.Grouping(expression);
+            }
+            case Expr.Invoke invoke -> {
+                var callee = operation.apply(invoke.callee);
+                var arguments = withAll(invoke.arguments, operation);
+                if (callee == invoke.callee && arguments == invoke.arguments) yield invoke;
+                yield new Expr.Invoke(callee, invoke.paren, arguments);
+            }
+            case Expr.Logical logical -> {
+                var left = operation.apply(logical.left);
+                var right = operation.apply(logical.right);
+                if (left == logical.left && right == logical.right) yield logical;
+                yield new Expr.Logical(left, logical.operator, right);
+            }
+            case Expr.Set set -> {
+                var object = operation.apply(set.object);
+                var value = operation.apply(set.value);
+                if (object == set.object && value == set.value) yield set;
+                yield new Expr.Set(object, set.name, value);
+            }
+            case Expr.Unary unary -> {
+                var right = operation.apply(unary.right);
+                yield right == unary.right ? unary : new Expr.Unary(unary.operator, right);
+            }
+            default -> expr;
+        };
+    }
+
+    static List<Expr> withAll(List<Expr> expressions, UnaryOperator<Expr> operation) {
+        var results = new ArrayList<Expr>(expressions.size());
+        var changed = false;
+        for (var expression : expressions) {
+            var result = operation.apply(expression);
+            results.add(result);
+            changed |= result != expression;
+        }
+        return changed ? results : expressions;
+    }
+}
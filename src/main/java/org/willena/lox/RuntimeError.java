@@ -1,10 +1,15 @@
 package org.willena.lox;
 
 class RuntimeError extends RuntimeException {
-    final Token token;
+    final int line;
 
     RuntimeError(Token token, String message) {
+        this(token.line, message);
+    }
+
+    // For backends that only keep track of source lines, not tokens
+    RuntimeError(int line, String message) {
         super(message);
-        this.token = token;
+        this.line = line;
     }
 }
@@ -140,7 +140,7 @@ class Scanner {
             while (isDigit(peek())) advance(); // consume the decimal digits
         }
 
-        addToken(NUMBER, Double.parseDouble(source.substring(start, current)));
+        addToken(NUMBER, Numbers.parse(source.substring(start, current)));
     }
 
     private void identifier() {
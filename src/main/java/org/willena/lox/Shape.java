@@ -0,0 +1,48 @@
+package org.willena.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// The layout of an instance's fields: which slot of its values array holds which field. Instances
+// that got the same fields, in the same order, share one shape, so the names are stored once per
+// layout instead of once per object.
+//
+// Every class starts its instances out with an empty root shape. Adding a field moves an instance
+// to the shape with one more slot, following a transition that is created the first time any
+// instance of the class adds that field in that state and reused from then on. Shapes never change
+// after they're made, which is what lets property sites cache a slot per shape.
+final class Shape {
+    final LoxClass klass;
+    final int size;
+    private final Map<String, Integer> slots;
+    private final Map<String, Shape> transitions = new HashMap<>();
+
+    Shape(LoxClass klass) {
+        this(klass, Map.of());
+    }
+
+    private Shape(LoxClass klass, Map<String, Integer> slots) {
+        this.klass = klass;
+        this.size = slots.size();
+        this.slots = slots;
+    }
+
+    // The slot of the field, or -1 if instances of this shape don't have it
+    int slotOf(String name) {
+        var slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    // The shape of an instance of this one after adding the field
+    Shape withField(String name) {
+        var shape = transitions.get(name);
+        if (shape == null) {
+            var slots = new HashMap<>(this.slots);
+            slots.put(name, size);
+            shape = new Shape(klass, slots);
+            transitions.put(name, shape);
+        }
+
+        return shape;
+    }
+}
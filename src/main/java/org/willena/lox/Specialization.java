@@ -0,0 +1,109 @@
+package org.willena.lox;
+
+// Operand types that an operator node has specialized itself for. Every Expr.Binary, Expr.Unary and
+// Expr.Logical starts out UNINITIALIZED, picks a specialization from the operands it sees on its
+// first evaluation, and keeps using that fast path for as long as the operand types hold. As soon as
+// a different type shows up the node is rewritten to GENERIC, which is never undone. The one step
+// short of that is from integers to numbers: a node that saw only integers takes any numbers,
+// doubles first, once it sees a double.
+enum Specialization {
+    UNINITIALIZED,
+    GENERIC,
+
+    // Binary
+    INTEGER_ADD,
+    INTEGER_SUBTRACT,
+    INTEGER_MULTIPLY,
+    INTEGER_DIVIDE,
+    INTEGER_GREATER,
+    INTEGER_GREATER_EQUAL,
+    INTEGER_LESS,
+    INTEGER_LESS_EQUAL,
+    NUMBER_ADD,
+    NUMBER_SUBTRACT,
+    NUMBER_MULTIPLY,
+    NUMBER_DIVIDE,
+    NUMBER_GREATER,
+    NUMBER_GREATER_EQUAL,
+    NUMBER_LESS,
+    NUMBER_LESS_EQUAL,
+    STRING_CONCAT,
+
+    // Unary
+    INTEGER_NEGATE,
+    NUMBER_NEGATE,
+    BOOLEAN_NOT,
+
+    // Logical
+    BOOLEAN_AND,
+    BOOLEAN_OR;
+
+    static Specialization forBinary(TokenType operator, Object left, Object right) {
+        if (left instanceof String && right instanceof String && operator == TokenType.PLUS) {
+            return STRING_CONCAT;
+        }
+        if (!Numbers.isNumber(left) || !Numbers.isNumber(right)) return GENERIC;
+
+        if (left instanceof Long && right instanceof Long) {
+            return switch (operator) {
+                case PLUS -> INTEGER_ADD;
+                case MINUS -> INTEGER_SUBTRACT;
+                case STAR -> INTEGER_MULTIPLY;
+                case SLASH -> INTEGER_DIVIDE;
+                case GREATER -> INTEGER_GREATER;
+                case GREATER_EQUAL -> INTEGER_GREATER_EQUAL;
+                case LESS -> INTEGER_LESS;
+                case LESS_EQUAL -> INTEGER_LESS_EQUAL;
+                default -> GENERIC;
+            };
+        }
+
+        return switch (operator) {
+            case PLUS -> NUMBER_ADD;
+            case MINUS -> NUMBER_SUBTRACT;
+            case STAR -> NUMBER_MULTIPLY;
+            case SLASH -> NUMBER_DIVIDE;
+            case GREATER -> NUMBER_GREATER;
+            case GREATER_EQUAL -> NUMBER_GREATER_EQUAL;
+            case LESS -> NUMBER_LESS;
+            case LESS_EQUAL -> NUMBER_LESS_EQUAL;
+            // Equality already works on any type, there's nothing to gain
+            default -> GENERIC;
+        };
+    }
+
+    static Specialization forUnary(TokenType operator, Object right) {
+        if (operator == TokenType.MINUS && right instanceof Long) return INTEGER_NEGATE;
+        if (operator == TokenType.MINUS && right instanceof Double) return NUMBER_NEGATE;
+        if (operator == TokenType.BANG && right instanceof Boolean) return BOOLEAN_NOT;
+        return GENERIC;
+    }
+
+    // What a node goes to when its guard fails on the given operands
+    Specialization generalize(Object left, Object right) {
+        if (!Numbers.isNumber(left) || !Numbers.isNumber(right)) return GENERIC;
+
+        return switch (this) {
+            case INTEGER_ADD -> NUMBER_ADD;
+            case INTEGER_SUBTRACT -> NUMBER_SUBTRACT;
+            case INTEGER_MULTIPLY -> NUMBER_MULTIPLY;
+            case INTEGER_DIVIDE -> NUMBER_DIVIDE;
+            case INTEGER_GREATER -> NUMBER_GREATER;
+            case INTEGER_GREATER_EQUAL -> NUMBER_GREATER_EQUAL;
+            case INTEGER_LESS -> NUMBER_LESS;
+            case INTEGER_LESS_EQUAL -> NUMBER_LESS_EQUAL;
+            case INTEGER_NEGATE -> NUMBER_NEGATE;
+            // Number nodes take integers as well, so only non-numbers get them here
+            default -> GENERIC;
+        };
+    }
+
+    Specialization generalize(Object operand) {
+        return generalize(operand, operand);
+    }
+
+    static Specialization forLogical(TokenType operator, Object left) {
+        if (!(left instanceof Boolean)) return GENERIC;
+        return operator == TokenType.OR ? BOOLEAN_OR : BOOLEAN_AND;
+    }
+}
@@ -2,7 +2,7 @@ package org.willena.lox;
 
 import java.util.List;
 
-abstract class Stmt {
+sealed interface Stmt {
     interface Visitor<R> {
         R visitBlockStmt(Block stmt);
         R visitClassStmt(Class stmt);
@@ -15,20 +15,20 @@ abstract class Stmt {
         R visitWhileStmt(While stmt);
     }
 
-    static class Block extends Stmt {
+    final class Block implements Stmt {
         Block(List<Stmt> statements) {
             this.statements = statements;
         }
 
         @Override
-        <R> R accept(Visitor<R> visitor) {
+        public <R> R accept(Visitor<R> visitor) {
             return visitor.visitBlockStmt(this);
         }
 
         final List<Stmt> statements;
     }
 
-    static class Class extends Stmt {
+    final class Class implements Stmt {
         Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods) {
             this.name = name;
             this.superclass = superclass;
@@ -36,29 +36,33 @@ abstract class Stmt {
         }
 
         @Override
-        <R> R accept(Visitor<R> visitor) {
+        public <R> R accept(Visitor<R> visitor) {
             return visitor.visitClassStmt(this);
         }
 
         final Token name;
         final Expr.Variable superclass;
         final List<Stmt.Function> methods;
+
+        int slot = -1;
+        boolean captured;
+        int superclassSlot = -1;
     }
 
-    static class Expression extends Stmt {
+    final class Expression implements Stmt {
         Expression(Expr expression) {
             this.expression = expression;
         }
 
         @Override
-        <R> R accept(Visitor<R> visitor) {
+        public <R> R accept(Visitor<R> visitor) {
             return visitor.visitExpressionStmt(this);
         }
 
         final Expr expression;
     }
 
-    static class Function extends Stmt {
+    final class Function implements Stmt {
         Function(Token name, List<Token> params, List<Stmt> body) {
             this.name = name;
             this.params = params;
@@ -66,16 +70,25 @@ abstract class Stmt {
         }
 
         @Override
-        <R> R accept(Visitor<R> visitor) {
+        public <R> R accept(Visitor<R> visitor) {
             return visitor.visitFunctionStmt(this);
         }
 
         final Token name;
         final List<Token> params;
         final List<Stmt> body;
+
+        boolean isMethod;
+        int slot = -1;
+        boolean captured;
+        int slots;
+        int[] captures;
+        int[] capturedParameters;
+        int calls;
+        volatile CompiledFunction compiled;
     }
 
-    static class If extends Stmt {
+    final class If implements Stmt {
         If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
             this.condition = condition;
             this.thenBranch = thenBranch;
@@ -83,7 +96,7 @@ abstract class Stmt {
         }
 
         @Override
-        <R> R accept(Visitor<R> visitor) {
+        public <R> R accept(Visitor<R> visitor) {
             return visitor.visitIfStmt(this);
         }
 
@@ -92,27 +105,27 @@ abstract class Stmt {
         final Stmt elseBranch;
     }
 
-    static class Print extends Stmt {
+    final class Print implements Stmt {
         Print(Expr expression) {
             this.expression = expression;
         }
 
         @Override
-        <R> R accept(Visitor<R> visitor) {
+        public <R> R accept(Visitor<R> visitor) {
             return visitor.visitPrintStmt(this);
         }
 
         final Expr expression;
     }
 
-    static class Return extends Stmt {
+    final class Return implements Stmt {
         Return(Token keyword, Expr value) {
             this.keyword = keyword;
             this.value = value;
         }
 
         @Override
-        <R> R accept(Visitor<R> visitor) {
+        public <R> R accept(Visitor<R> visitor) {
             return visitor.visitReturnStmt(this);
         }
 
@@ -120,35 +133,42 @@ abstract class Stmt {
         final Expr value;
     }
 
-    static class Var extends Stmt {
+    final class Var implements Stmt {
         Var(Token name, Expr initializer) {
             this.name = name;
             this.initializer = initializer;
         }
 
         @Override
-        <R> R accept(Visitor<R> visitor) {
+        public <R> R accept(Visitor<R> visitor) {
             return visitor.visitVarStmt(this);
         }
 
         final Token name;
         final Expr initializer;
+
+        int slot = -1;
+        boolean captured;
+        boolean assigned;
     }
 
-    static class While extends Stmt {
+    final class While implements Stmt {
         While(Expr condition, Stmt body) {
             this.condition = condition;
             this.body = body;
         }
 
         @Override
-        <R> R accept(Visitor<R> visitor) {
+        public <R> R accept(Visitor<R> visitor) {
             return visitor.visitWhileStmt(this);
         }
 
         final Expr condition;
         final Stmt body;
+
+        int backEdges;
+        volatile CompiledLoop compiled;
     }
 
-    abstract <R> R accept(Visitor<R> visitor);
+    <R> R accept(Visitor<R> visitor);
 }
@@ -0,0 +1,24 @@
+package org.willena.lox;
+
+// The method an Expr.Super resolved to the last time it ran. The superclass of a class is fixed
+// once the class is defined, so this only has to be looked up again when the class declaration
+// itself runs again, say in a function that declares it, and gets a different superclass.
+final class SuperCache {
+    private LoxClass superclass;
+    private LoxFunction method;
+
+    // The method, unbound
+    LoxFunction get(LoxClass superclass, Token name) {
+        if (superclass != this.superclass) {
+            var method = superclass.findMethod(name.lexeme);
+            if (method == null) {
+                throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+            }
+
+            this.superclass = superclass;
+            this.method = method;
+        }
+
+        return method;
+    }
+}
@@ -0,0 +1,630 @@
+package org.willena.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Stack-based virtual machine running the bytecode produced by the Compiler. It's an alternative
+// to the tree-walking Interpreter and behaves the same way, down to error messages and the lines
+// they are reported on.
+class VM {
+    // Marks a global slot that has been handed out to the compiler but not defined yet
+    private static final Object UNDEFINED = new Object();
+
+    // A variable captured by a closure. While the variable's frame is active the upvalue points to
+    // its stack slot; once the frame returns, the value moves into the upvalue itself.
+    static final class Upvalue {
+        final int slot;
+        boolean isOpen = true;
+        Object closed = null;
+        Upvalue next;
+
+        Upvalue(int slot, Upvalue next) {
+            this.slot = slot;
+            this.next = next;
+        }
+    }
+
+    private static final class CallFrame {
+        VmClosure closure;
+        int ip;
+        int base;
+    }
+
+    private Object[] stack = new Object[256];
+    private int sp = 0;
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+
+    // Open upvalues, sorted by stack slot with the topmost first
+    private Upvalue openUpvalues = null;
+
+    private final Map<String, Integer> globalSlots = new HashMap<>();
+    private String[] globalNames = new String[64];
+    private Object[] globals = new Object[64];
+
+    VM() {
+        defineNative("clock", new VmNative(0, arguments -> (double)System.currentTimeMillis() / 1000.0));
+    }
+
+    void interpret(List<Stmt> statements) {
+        var function = new Compiler(this).compile(statements);
+        if (Lox.hadError) return;
+
+        var closure = new VmClosure(function);
+        stack[sp++] = closure;
+
+        try {
+            call(closure, 0, function.chunk, 0);
+            run();
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+            resetStack();
+        }
+    }
+
+    // Returns the slot holding the global with the given name, allocating one the first time the
+    // name is seen. Globals may be defined after the code that uses them is compiled, so the slot
+    // starts out undefined and is checked every time it's read or assigned.
+    int globalSlot(String name) {
+        var existing = globalSlots.get(name);
+        if (existing != null) return existing;
+
+        var slot = globalSlots.size();
+        if (slot == globals.length) {
+            globals = Arrays.copyOf(globals, slot * 2);
+            globalNames = Arrays.copyOf(globalNames, slot * 2);
+        }
+        globals[slot] = UNDEFINED;
+        globalNames[slot] = name;
+        globalSlots.put(name, slot);
+        return slot;
+    }
+
+    private void defineNative(String name, VmNative function) {
+        globals[globalSlot(name)] = function;
+    }
+
+    private void run() {
+        var frame = frames[frameCount - 1];
+        var closure = frame.closure;
+        var chunk = closure.function.chunk;
+        var code = chunk.code;
+        var constants = chunk.constants;
+        var ip = frame.ip;
+        var base = frame.base;
+        var stack = this.stack;
+        var sp = this.sp;
+
+        for (;;) {
+            var start = ip;
+            switch (code[ip++]) {
+                case OpCode.CONSTANT: {
+                    stack[sp++] = constants[readShort(code, ip)];
+                    ip += 2;
+                    break;
+                }
+                case OpCode.NIL: stack[sp++] = null; break;
+                case OpCode.TRUE: stack[sp++] = true; break;
+                case OpCode.FALSE: stack[sp++] = false; break;
+                case OpCode.POP: sp--; break;
+                case OpCode.GET_LOCAL: {
+                    stack[sp++] = stack[base + readShort(code, ip)];
+                    ip += 2;
+                    break;
+                }
+                case OpCode.SET_LOCAL: {
+                    stack[base + readShort(code, ip)] = stack[sp - 1];
+                    ip += 2;
+                    break;
+                }
+                case OpCode.GET_GLOBAL: {
+                    var slot = readShort(code, ip);
+                    ip += 2;
+                    var value = globals[slot];
+                    if (value == UNDEFINED) {
+                        throw error(chunk, start, "Undefined variable '" + globalNames[slot] + "'.");
+                    }
+                    stack[sp++] = value;
+                    break;
+                }
+                case OpCode.DEFINE_GLOBAL: {
+                    globals[readShort(code, ip)] = stack[--sp];
+                    ip += 2;
+                    break;
+                }
+                case OpCode.SET_GLOBAL: {
+                    var slot = readShort(code, ip);
+                    ip += 2;
+                    if (globals[slot] == UNDEFINED) {
+                        throw error(chunk, start, "Undefined variable '" + globalNames[slot] + "'.");
+                    }
+                    globals[slot] = stack[sp - 1];
+                    break;
+                }
+                case OpCode.GET_UPVALUE: {
+                    var upvalue = closure.upvalues[readShort(code, ip)];
+                    ip += 2;
+                    stack[sp++] = upvalue.isOpen ? stack[upvalue.slot] : upvalue.closed;
+                    break;
+                }
+                case OpCode.SET_UPVALUE: {
+                    var upvalue = closure.upvalues[readShort(code, ip)];
+                    ip += 2;
+                    if (upvalue.isOpen) {
+                        stack[upvalue.slot] = stack[sp - 1];
+                    } else {
+                        upvalue.closed = stack[sp - 1];
+                    }
+                    break;
+                }
+                case OpCode.GET_PROPERTY: {
+                    var name = (String)constants[readShort(code, ip)];
+                    ip += 2;
+                    if (!(stack[sp - 1] instanceof VmInstance instance)) {
+                        throw error(chunk, start, "Only instances have properties.");
+                    }
+
+                    var value = instance.fields.getOrDefault(name, UNDEFINED);
+                    if (value == UNDEFINED) {
+                        var method = instance.klass.methods.get(name);
+                        if (method == null) {
+                            throw error(chunk, start, "Undefined property '" + name + "'.");
+                        }
+                        value = new VmBoundMethod(instance, method);
+                    }
+                    stack[sp - 1] = value;
+                    break;
+                }
+                case OpCode.SET_PROPERTY: {
+                    var name = (String)constants[readShort(code, ip)];
+                    ip += 2;
+                    if (!(stack[sp - 2] instanceof VmInstance instance)) {
+                        throw error(chunk, start, "Only instances have fields.");
+                    }
+
+                    var value = stack[--sp];
+                    instance.fields.put(name, value);
+                    stack[sp - 1] = value;
+                    break;
+                }
+                case OpCode.CHECK_INSTANCE: {
+                    if (!(stack[sp - 1] instanceof VmInstance)) {
+                        throw error(chunk, start, "Only instances have fields.");
+                    }
+                    break;
+                }
+                case OpCode.GET_SUPER: {
+                    var name = (String)constants[readShort(code, ip)];
+                    ip += 2;
+                    var superclass = (VmClass)stack[--sp];
+                    var method = superclass.methods.get(name);
+                    if (method == null) {
+                        throw error(chunk, start, "Undefined property '" + name + "'.");
+                    }
+                    stack[sp - 1] = new VmBoundMethod(stack[sp - 1], method);
+                    break;
+                }
+                case OpCode.EQUAL: {
+                    var b = stack[--sp];
+                    stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], b);
+                    break;
+                }
+                case OpCode.NOT_EQUAL: {
+                    var b = stack[--sp];
+                    stack[sp - 1] = !Interpreter.isEqual(stack[sp - 1], b);
+                    break;
+                }
+                // Doubles come first, then two integers, which stay integers as long as they can.
+                // Anything else that's a number is an integer mixed with a double, which is a
+                // double operation.
+                case OpCode.GREATER: {
+                    if (stack[sp - 2] instanceof Double a && stack[sp - 1] instanceof Double b) {
+                        stack[sp - 2] = a > b;
+                        sp--;
+                        break;
+                    }
+                    if (stack[sp - 2] instanceof Long a && stack[sp - 1] instanceof Long b) {
+                        stack[sp - 2] = a > b;
+                        sp--;
+                        break;
+                    }
+                    if (Numbers.isNumber(stack[sp - 2]) && Numbers.isNumber(stack[sp - 1])) {
+                        stack[sp - 2] = Numbers.toDouble(stack[sp - 2]) > Numbers.toDouble(stack[sp - 1]);
+                        sp--;
+                        break;
+                    }
+                    throw error(chunk, start, "Operands must be numbers.");
+                }
+                case OpCode.GREATER_EQUAL: {
+                    if (stack[sp - 2] instanceof Double a && stack[sp - 1] instanceof Double b) {
+                        stack[sp - 2] = a >= b;
+                        sp--;
+                        break;
+                    }
+                    if (stack[sp - 2] instanceof Long a && stack[sp - 1] instanceof Long b) {
+                        stack[sp - 2] = a >= b;
+                        sp--;
+                        break;
+                    }
+                    if (Numbers.isNumber(stack[sp - 2]) && Numbers.isNumber(stack[sp - 1])) {
+                        stack[sp - 2] = Numbers.toDouble(stack[sp - 2]) >= Numbers.toDouble(stack[sp - 1]);
+                        sp--;
+                        break;
+                    }
+                    throw error(chunk, start, "Operands must be numbers.");
+                }
+                case OpCode.LESS: {
+                    if (stack[sp - 2] instanceof Double a && stack[sp - 1] instanceof Double b) {
+                        stack[sp - 2] = a < b;
+                        sp--;
+                        break;
+                    }
+                    if (stack[sp - 2] instanceof Long a && stack[sp - 1] instanceof Long b) {
+                        stack[sp - 2] = a < b;
+                        sp--;
+                        break;
+                    }
+                    if (Numbers.isNumber(stack[sp - 2]) && Numbers.isNumber(stack[sp - 1])) {
+                        stack[sp - 2] = Numbers.toDouble(stack[sp - 2]) < Numbers.toDouble(stack[sp - 1]);
+                        sp--;
+                        break;
+                    }
+                    throw error(chunk, start, "Operands must be numbers.");
+                }
+                case OpCode.LESS_EQUAL: {
+                    if (stack[sp - 2] instanceof Double a && stack[sp - 1] instanceof Double b) {
+                        stack[sp - 2] = a <= b;
+                        sp--;
+                        break;
+                    }
+                    if (stack[sp - 2] instanceof Long a && stack[sp - 1] instanceof Long b) {
+                        stack[sp - 2] = a <= b;
+                        sp--;
+                        break;
+                    }
+                    if (Numbers.isNumber(stack[sp - 2]) && Numbers.isNumber(stack[sp - 1])) {
+                        stack[sp - 2] = Numbers.toDouble(stack[sp - 2]) <= Numbers.toDouble(stack[sp - 1]);
+                        sp--;
+                        break;
+                    }
+                    throw error(chunk, start, "Operands must be numbers.");
+                }
+                case OpCode.ADD: {
+                    if (stack[sp - 2] instanceof Double a && stack[sp - 1] instanceof Double b) {
+                        stack[sp - 2] = a + b;
+                        sp--;
+                        break;
+                    }
+                    if (stack[sp - 2] instanceof Long a && stack[sp - 1] instanceof Long b) {
+                        stack[sp - 2] = Numbers.add((long)a, (long)b);
+                        sp--;
+                        break;
+                    }
+                    if (Numbers.isNumber(stack[sp - 2]) && Numbers.isNumber(stack[sp - 1])) {
+                        stack[sp - 2] = Numbers.toDouble(stack[sp - 2]) + Numbers.toDouble(stack[sp - 1]);
+                        sp--;
+                        break;
+                    }
+                    if (stack[sp - 2] instanceof String a && stack[sp - 1] instanceof String b) {
+                        stack[sp - 2] = a + b;
+                        sp--;
+                        break;
+                    }
+                    throw error(chunk, start, "Operands must be two numbers or two strings.");
+                }
+                case OpCode.SUBTRACT: {
+                    if (stack[sp - 2] instanceof Double a && stack[sp - 1] instanceof Double b) {
+                        stack[sp - 2] = a - b;
+                        sp--;
+                        break;
+                    }
+                    if (stack[sp - 2] instanceof Long a && stack[sp - 1] instanceof Long b) {
+                        stack[sp - 2] = Numbers.subtract((long)a, (long)b);
+                        sp--;
+                        break;
+                    }
+                    if (Numbers.isNumber(stack[sp - 2]) && Numbers.isNumber(stack[sp - 1])) {
+                        stack[sp - 2] = Numbers.toDouble(stack[sp - 2]) - Numbers.toDouble(stack[sp - 1]);
+                        sp--;
+                        break;
+                    }
+                    throw error(chunk, start, "Operands must be numbers.");
+                }
+                case OpCode.MULTIPLY: {
+                    if (stack[sp - 2] instanceof Double a && stack[sp - 1] instanceof Double b) {
+                        stack[sp - 2] = a * b;
+                        sp--;
+                        break;
+                    }
+                    if (stack[sp - 2] instanceof Long a && stack[sp - 1] instanceof Long b) {
+                        stack[sp - 2] = Numbers.multiply((long)a, (long)b);
+                        sp--;
+                        break;
+                    }
+                    if (Numbers.isNumber(stack[sp - 2]) && Numbers.isNumber(stack[sp - 1])) {
+                        stack[sp - 2] = Numbers.toDouble(stack[sp - 2]) * Numbers.toDouble(stack[sp - 1]);
+                        sp--;
+                        break;
+                    }
+                    throw error(chunk, start, "Operands must be numbers.");
+                }
+                case OpCode.DIVIDE: {
+                    if (stack[sp - 2] instanceof Double a && stack[sp - 1] instanceof Double b) {
+                        stack[sp - 2] = a / b;
+                        sp--;
+                        break;
+                    }
+                    if (stack[sp - 2] instanceof Long a && stack[sp - 1] instanceof Long b) {
+                        stack[sp - 2] = Numbers.divide((long)a, (long)b);
+                        sp--;
+                        break;
+                    }
+                    if (Numbers.isNumber(stack[sp - 2]) && Numbers.isNumber(stack[sp - 1])) {
+                        stack[sp - 2] = Numbers.toDouble(stack[sp - 2]) / Numbers.toDouble(stack[sp - 1]);
+                        sp--;
+                        break;
+                    }
+                    throw error(chunk, start, "Operands must be numbers.");
+                }
+                case OpCode.NOT: {
+                    stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+                    break;
+                }
+                case OpCode.NEGATE: {
+                    if (stack[sp - 1] instanceof Double a) {
+                        stack[sp - 1] = -a;
+                        break;
+                    }
+                    if (stack[sp - 1] instanceof Long a) {
+                        stack[sp - 1] = Numbers.negate((long)a);
+                        break;
+                    }
+                    throw error(chunk, start, "Operand must be a number.");
+                }
+                case OpCode.PRINT: {
+                    System.out.println(Interpreter.stringify(stack[--sp]));
+                    break;
+                }
+                case OpCode.JUMP: {
+                    ip += readShort(code, ip) + 2;
+                    break;
+                }
+                case OpCode.JUMP_IF_FALSE: {
+                    if (Interpreter.isTruthy(stack[sp - 1])) {
+                        ip += 2;
+                    } else {
+                        ip += readShort(code, ip) + 2;
+                    }
+                    break;
+                }
+                case OpCode.JUMP_IF_TRUE: {
+                    if (Interpreter.isTruthy(stack[sp - 1])) {
+                        ip += readShort(code, ip) + 2;
+                    } else {
+                        ip += 2;
+                    }
+                    break;
+                }
+                case OpCode.LOOP: {
+                    ip -= readShort(code, ip) - 2;
+                    break;
+                }
+                case OpCode.CALL: {
+                    var argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    this.sp = sp;
+                    callValue(stack[sp - argCount - 1], argCount, chunk, start);
+
+                    frame = frames[frameCount - 1];
+                    closure = frame.closure;
+                    chunk = closure.function.chunk;
+                    code = chunk.code;
+                    constants = chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    stack = this.stack;
+                    sp = this.sp;
+                    break;
+                }
+                case OpCode.TAIL_CALL: {
+                    var argCount = code[ip++] & 0xff;
+
+                    // Move the callee and its arguments down over the frame of the function
+                    // returning, which then makes way for the callee's own frame, in its place
+                    closeUpvalues(base);
+                    System.arraycopy(stack, sp - argCount - 1, stack, base, argCount + 1);
+                    frameCount--;
+                    this.sp = base + argCount + 1;
+                    callValue(stack[base], argCount, chunk, start);
+
+                    // What a native function or a class without an initializer returns is already
+                    // in place for the caller, as if RETURN had put it there
+                    frame = frames[frameCount - 1];
+                    closure = frame.closure;
+                    chunk = closure.function.chunk;
+                    code = chunk.code;
+                    constants = chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    stack = this.stack;
+                    sp = this.sp;
+                    break;
+                }
+                case OpCode.CLOSURE: {
+                    var function = (VmFunction)constants[readShort(code, ip)];
+                    ip += 2;
+                    var created = new VmClosure(function);
+                    for (var i = 0; i < created.upvalues.length; i++) {
+                        var isLocal = code[ip++] == 1;
+                        var index = readShort(code, ip);
+                        ip += 2;
+                        if (isLocal) {
+                            created.upvalues[i] = captureUpvalue(base + index);
+                        } else {
+                            created.upvalues[i] = closure.upvalues[index];
+                        }
+                    }
+                    stack[sp++] = created;
+                    break;
+                }
+                case OpCode.CLOSE_UPVALUE: {
+                    closeUpvalues(sp - 1);
+                    sp--;
+                    break;
+                }
+                case OpCode.RETURN: {
+                    var result = stack[--sp];
+                    closeUpvalues(base);
+                    frameCount--;
+                    if (frameCount == 0) {
+                        // Pop the script itself
+                        this.sp = 0;
+                        return;
+                    }
+
+                    sp = base;
+                    stack[sp++] = result;
+
+                    frame = frames[frameCount - 1];
+                    closure = frame.closure;
+                    chunk = closure.function.chunk;
+                    code = chunk.code;
+                    constants = chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case OpCode.CLASS: {
+                    stack[sp++] = new VmClass((String)constants[readShort(code, ip)]);
+                    ip += 2;
+                    break;
+                }
+                case OpCode.INHERIT: {
+                    if (!(stack[sp - 2] instanceof VmClass superclass)) {
+                        throw error(chunk, start, "Superclass must be a class.");
+                    }
+
+                    // Copy the inherited methods down. The subclass's own methods are added after
+                    // this, so they override them.
+                    var subclass = (VmClass)stack[--sp];
+                    subclass.methods.putAll(superclass.methods);
+                    subclass.initializer = superclass.initializer;
+                    break;
+                }
+                case OpCode.METHOD: {
+                    var name = (String)constants[readShort(code, ip)];
+                    ip += 2;
+                    var method = (VmClosure)stack[--sp];
+                    var klass = (VmClass)stack[sp - 1];
+                    klass.methods.put(name, method);
+                    if (name.equals("init")) klass.initializer = method;
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown opcode " + code[start]);
+            }
+        }
+    }
+
+    private void callValue(Object callee, int argCount, Chunk chunk, int at) {
+        if (callee instanceof VmClosure closure) {
+            call(closure, argCount, chunk, at);
+        } else if (callee instanceof VmBoundMethod bound) {
+            stack[sp - argCount - 1] = bound.receiver;
+            call(bound.method, argCount, chunk, at);
+        } else if (callee instanceof VmClass klass) {
+            stack[sp - argCount - 1] = new VmInstance(klass);
+            if (klass.initializer != null) {
+                call(klass.initializer, argCount, chunk, at);
+            } else if (argCount != 0) {
+                throw error(chunk, at, "Expected 0 arguments but got " + argCount + ".");
+            }
+        } else if (callee instanceof VmNative function) {
+            if (argCount != function.arity) {
+                throw error(chunk, at, "Expected " + function.arity + " arguments but got " + argCount + ".");
+            }
+            var arguments = Arrays.copyOfRange(stack, sp - argCount, sp);
+            var result = function.function.apply(arguments);
+            sp -= argCount + 1;
+            stack[sp++] = result;
+        } else {
+            throw error(chunk, at, "Can only call functions and classes.");
+        }
+    }
+
+    private void call(VmClosure closure, int argCount, Chunk chunk, int at) {
+        var function = closure.function;
+        if (argCount != function.arity) {
+            throw error(chunk, at, "Expected " + function.arity + " arguments but got " + argCount + ".");
+        }
+
+        if (frameCount == CallStack.maxDepth) {
+            throw error(chunk, at, "Stack overflow.");
+        }
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+
+        var base = sp - argCount - 1;
+        if (base + function.maxStack > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(stack.length * 2, base + function.maxStack));
+        }
+
+        var frame = frames[frameCount];
+        if (frame == null) {
+            frame = new CallFrame();
+            frames[frameCount] = frame;
+        }
+        frameCount++;
+
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = base;
+    }
+
+    private Upvalue captureUpvalue(int slot) {
+        Upvalue previous = null;
+        var upvalue = openUpvalues;
+        while (upvalue != null && upvalue.slot > slot) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+
+        if (upvalue != null && upvalue.slot == slot) return upvalue;
+
+        var created = new Upvalue(slot, upvalue);
+        if (previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    // Closes every open upvalue pointing at the given stack slot or above it
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.slot >= last) {
+            var upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.slot];
+            upvalue.isOpen = false;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    private void resetStack() {
+        Arrays.fill(stack, null);
+        sp = 0;
+        frameCount = 0;
+        openUpvalues = null;
+    }
+
+    private static int readShort(byte[] code, int offset) {
+        return ((code[offset] & 0xff) << 8) | (code[offset + 1] & 0xff);
+    }
+
+    private static RuntimeError error(Chunk chunk, int at, String message) {
+        return new RuntimeError(chunk.lines[at], message);
+    }
+}
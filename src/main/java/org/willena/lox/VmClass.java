@@ -0,0 +1,22 @@
+package org.willena.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class VmClass {
+    final String name;
+
+    // Inherited methods are copied in when the class is created, so lookups never have to walk up
+    // the superclass chain.
+    final Map<String, VmClosure> methods = new HashMap<>();
+    VmClosure initializer = null;
+
+    VmClass(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
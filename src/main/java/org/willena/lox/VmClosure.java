@@ -0,0 +1,16 @@
+package org.willena.lox;
+
+class VmClosure {
+    final VmFunction function;
+    final VM.Upvalue[] upvalues;
+
+    VmClosure(VmFunction function) {
+        this.function = function;
+        this.upvalues = new VM.Upvalue[function.upvalueCount];
+    }
+
+    @Override
+    public String toString() {
+        return function.toString();
+    }
+}
@@ -0,0 +1,24 @@
+package org.willena.lox;
+
+// A function compiled to bytecode. This is only the code; at runtime it's always wrapped in a
+// VmClosure that holds the variables it captured.
+class VmFunction {
+    final String name;
+    final int arity;
+    final Chunk chunk = new Chunk();
+    int upvalueCount = 0;
+
+    // Deepest the operand stack can get while running this function, including its locals
+    int maxStack = 0;
+
+    VmFunction(String name, int arity) {
+        this.name = name;
+        this.arity = arity;
+    }
+
+    @Override
+    public String toString() {
+        if (name == null) return "<script>";
+        return "<fn " + name + ">";
+    }
+}
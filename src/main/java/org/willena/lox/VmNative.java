@@ -0,0 +1,19 @@
+package org.willena.lox;
+
+import java.util.function.Function;
+
+// A function implemented in Java, callable from bytecode
+class VmNative {
+    final int arity;
+    final Function<Object[], Object> function;
+
+    VmNative(int arity, Function<Object[], Object> function) {
+        this.arity = arity;
+        this.function = function;
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
@@ -14,30 +14,31 @@ public class GenerateAst {
         }
         var outputDir = args[0];
         defineAst(outputDir, "Expr", Arrays.asList(
-            "Assign   : Token name, Expr value",
-            "Binary   : Expr left, Token operator, Expr right",
-            "Call     : Expr callee, Token paren, List<Expr> arguments",
-            "Get      : Expr object, Token name",
+            "Assign   : Token name, Expr value | int slot = -1, int upvalue = -1, boolean boxed, GlobalVariable global, Stmt.Var declaration",
+            "Binary   : Expr left, Token operator, Expr right | Specialization specialization = Specialization.UNINITIALIZED",
+            "Call     : Expr callee, Token paren, List<Expr> arguments | CallCache cache = new CallCache()",
+            "Get      : Expr object, Token name | PropertyCache cache = new PropertyCache()",
             "Grouping : Expr expression",
+            "Invoke   : Expr callee, Token paren, List<Expr> arguments | CallCache cache = new CallCache()",
             "Literal  : Object value",
-            "Logical  : Expr left, Token operator, Expr right",
-            "Set      : Expr object, Token name, Expr value",
-            "Super    : Token keyword, Token method",
-            "This     : Token keyword",
-            "Unary    : Token operator, Expr right",
-            "Variable : Token name"
+            "Logical  : Expr left, Token operator, Expr right | Specialization specialization = Specialization.UNINITIALIZED",
+            "Set      : Expr object, Token name, Expr value | PropertyCache cache = new PropertyCache()",
+            "Super    : Token keyword, Token method | This receiver, int upvalue = -1, SuperCache cache = new SuperCache()",
+            "This     : Token keyword | int slot = -1, int upvalue = -1, boolean boxed",
+            "Unary    : Token operator, Expr right | Specialization specialization = Specialization.UNINITIALIZED",
+            "Variable : Token name | int slot = -1, int upvalue = -1, boolean boxed, GlobalVariable global, Stmt.Var declaration"
         ));
 
         defineAst(outputDir, "Stmt", Arrays.asList(
             "Block      : List<Stmt> statements",
-            "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods",
+            "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods | int slot = -1, boolean captured, int superclassSlot = -1",
             "Expression : Expr expression",
-            "Function   : Token name, List<Token> params, List<Stmt> body",
+            "Function   : Token name, List<Token> params, List<Stmt> body | boolean isMethod, int slot = -1, boolean captured, int slots, int[] captures, int[] capturedParameters, int calls, volatile CompiledFunction compiled",
             "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
             "Print      : Expr expression",
             "Return     : Token keyword, Expr value",
-            "Var        : Token name, Expr initializer",
-            "While      : Expr condition, Stmt body"
+            "Var        : Token name, Expr initializer | int slot = -1, boolean captured, boolean assigned",
+            "While      : Expr condition, Stmt body | int backEdges, volatile CompiledLoop compiled"
         ));
     }
 
@@ -49,11 +50,12 @@ public class GenerateAst {
         var path = outputDir + "/" + baseName + ".java";
         var writer = new PrintWriter(path, "UTF-8");
 
-        writer.println("package eu.willena.lox;");
+        writer.println("package org.willena.lox;");
         writer.println();
         writer.println("import java.util.List;");
         writer.println();
-        writer.println("abstract class " + baseName + " {");
+        // Sealed, so the interpreter can switch over the node types exhaustively
+        writer.println("sealed interface " + baseName + " {");
 
         // Visitor-pattern interface
         defineVisitor(writer, baseName, types);
@@ -63,12 +65,17 @@ public class GenerateAst {
         for (var type : types) {
             var className = type.split(":")[0].trim();
             var fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            var resolved = "";
+            if (fields.contains("|")) {
+                resolved = fields.split("\\|")[1].trim();
+                fields = fields.split("\\|")[0].trim();
+            }
+            defineType(writer, baseName, className, fields, resolved);
             writer.println();
         }
 
         // Visitor-pattern method
-        writer.println("    abstract <R> R accept(Visitor<R> visitor);");
+        writer.println("    <R> R accept(Visitor<R> visitor);");
 
         writer.println("}");
         writer.close();
@@ -91,10 +98,11 @@ public class GenerateAst {
             PrintWriter writer,
             String baseName,
             String className,
-            String fieldList
+            String fieldList,
+            String resolvedList
     ) {
         // Class declaration
-        writer.println("    static class " + className + " extends " + baseName + " {");
+        writer.println("    final class " + className + " implements " + baseName + " {");
 
         // Constructor
         writer.println("        " + className + "(" + fieldList + ") {");
@@ -108,7 +116,7 @@ public class GenerateAst {
         // Visitor-pattern implementation
         writer.println();
         writer.println("        @Override");
-        writer.println("        <R> R accept(Visitor<R> visitor) {");
+        writer.println("        public <R> R accept(Visitor<R> visitor) {");
         writer.println("            return visitor.visit" + className + baseName + "(this);");
         writer.println("        }");
 
@@ -119,6 +127,14 @@ public class GenerateAst {
             writer.println("        final " + field + ";");
         }
 
+        // Fields filled in after parsing, by the resolver or while running
+        if (!resolvedList.isEmpty()) {
+            writer.println();
+            for (var field : resolvedList.split(", ")) {
+                writer.println("        " + field + ";");
+            }
+        }
+
         writer.println("    }");
     }
 }